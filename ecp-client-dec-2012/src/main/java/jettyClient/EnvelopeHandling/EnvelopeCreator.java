@@ -16,9 +16,13 @@
 
 package jettyClient.EnvelopeHandling;
 
+import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import jettyClient.parser.EcpHeaderInfo;
 import jettyClient.parser.ParseHelper;
 import jettyClient.simpleClient.ClientConfiguration;
 
@@ -38,6 +42,14 @@ public class EnvelopeCreator {
 	// Get the client logger
 	private final static Logger logger = LoggerFactory
 			.getLogger(ClientConfiguration.logger);
+
+	private static final String SOAP11_NS = Envelope.DEFAULT_ELEMENT_NAME
+			.getNamespaceURI();
+
+	/* Prefix of the SOAP namespace in the envelopes serialized here. */
+	private static final String SOAP_PREFIX = "S";
+	private static final String SOAP_ENVELOPE = SOAP_PREFIX + ":"
+			+ Envelope.DEFAULT_ELEMENT_LOCAL_NAME;
 	
 	/**
 	 * Return an IdP Envelope (Header = null, Body = AuthnRequest from SP).
@@ -59,6 +71,53 @@ public class EnvelopeCreator {
 		return envelope;
 	}
 
+	/**
+	 * Return an IdP Envelope as bytes (Header = none, Body = AuthnRequest from
+	 * the SP), without building any DOM.
+	 * 
+	 * The Body of the SP message is copied verbatim between a serialized
+	 * Envelope start and end tag. The Envelope redeclares the namespaces that
+	 * the SP declared on its own Envelope, so the Body keeps its namespace
+	 * context and any signature over the AuthnRequest stays intact.
+	 * 
+	 * Returns null if the Body could not be located in the SP message, or
+	 * the SP message is not in UTF-8 or US-ASCII, in which case
+	 * createIdpEnvelope(EnvelopeParts) can be used instead.
+	 * 
+	 * @param spHeaderInfo
+	 *            Header information read from the SP message.
+	 * @return An envelope with an AuthnRequest addressed for the IdP, as
+	 *         bytes.
+	 */
+	public static byte[] createIdpEnvelope(EcpHeaderInfo spHeaderInfo) {
+
+		if (!canSplice(spHeaderInfo))
+			return null;
+
+		String envelopeName = qualifiedName(spHeaderInfo.getBodyPrefix(),
+				Envelope.DEFAULT_ELEMENT_LOCAL_NAME);
+
+		// The Body prefix must be bound to the SOAP namespace on the
+		// Envelope, unless the Body declares it itself.
+		Map<String, String> namespaces = new LinkedHashMap<String, String>(
+				spHeaderInfo.getEnvelopeNamespaces());
+		String soapNamespace = namespaces.get(spHeaderInfo.getBodyPrefix());
+
+		if (soapNamespace == null) {
+			namespaces.put(spHeaderInfo.getBodyPrefix(), SOAP11_NS);
+		} else if (!soapNamespace.equals(SOAP11_NS)) {
+			logger.debug("The Body prefix is not bound to the SOAP namespace.");
+			return null;
+		}
+
+		byte[] start = utf8(startTag(envelopeName, namespaces));
+		byte[] end = utf8("</" + envelopeName + ">");
+
+		return concat(start, spHeaderInfo.getMessage(),
+				spHeaderInfo.getBodyOffset(), spHeaderInfo.getBodyLength(),
+				end);
+	}
+
 	/**
 	 * Return an envelope that will be returned to the SP (Header = PAOS
 	 * Response, Body = Response that contains an assertion).
@@ -79,6 +138,75 @@ public class EnvelopeCreator {
 	}
 
 
+	/**
+	 * Return an envelope that will be returned to the SP (Header = PAOS
+	 * Response, Body = the Body the IdP sent), as bytes and without building
+	 * any DOM.
+	 * 
+	 * The envelope is assembled from a constant Envelope start tag and PAOS
+	 * Header, the IdP Body copied verbatim and the Envelope end tag, into one
+	 * byte array of exactly the right size. The namespaces the IdP declared
+	 * on its Envelope are redeclared, so the Body keeps its namespace
+	 * context.
+	 * 
+	 * Returns null if the Body could not be located in the IdP message, or
+	 * the IdP message is not in UTF-8 or US-ASCII, in which case
+	 * createSpResponseEnvelope(Body) can be used instead.
+	 * 
+	 * @param idpHeaderInfo
+	 *            Header information read from the IdP message.
+	 * @param refToMessageID
+	 *            The messageID of the SP's PAOS request, or null.
+	 * @return An envelope addressed for the SP, as bytes.
+	 */
+	public static byte[] createSpResponseEnvelope(EcpHeaderInfo idpHeaderInfo,
+			String refToMessageID) {
+
+		if (!canSplice(idpHeaderInfo))
+			return null;
+
+		// The header uses the prefix S for the SOAP namespace.
+		Map<String, String> namespaces = new LinkedHashMap<String, String>();
+		namespaces.put(SOAP_PREFIX, SOAP11_NS);
+
+		for (Map.Entry<String, String> namespace : idpHeaderInfo
+				.getEnvelopeNamespaces().entrySet()) {
+			if (!namespace.getKey().equals(SOAP_PREFIX)) {
+				namespaces.put(namespace.getKey(), namespace.getValue());
+			} else if (!namespace.getValue().equals(SOAP11_NS)) {
+				logger.debug("The IdP bound the prefix " + SOAP_PREFIX
+						+ " to another namespace.");
+				return null;
+			}
+		}
+
+		// A Body in the default namespace needs it declared.
+		if (idpHeaderInfo.getBodyPrefix().length() == 0
+				&& !namespaces.containsKey(""))
+			namespaces.put("", SOAP11_NS);
+
+		byte[] start = utf8(startTag(SOAP_ENVELOPE, namespaces));
+		byte[] header = HeaderCreator.serializedEcpToSpHeader(refToMessageID);
+		byte[] end = utf8("</" + SOAP_ENVELOPE + ">");
+
+		byte[] message = idpHeaderInfo.getMessage();
+		int bodyLength = idpHeaderInfo.getBodyLength();
+		byte[] bytes = new byte[start.length + header.length + bodyLength
+				+ end.length];
+
+		int position = 0;
+		System.arraycopy(start, 0, bytes, position, start.length);
+		position += start.length;
+		System.arraycopy(header, 0, bytes, position, header.length);
+		position += header.length;
+		System.arraycopy(message, idpHeaderInfo.getBodyOffset(), bytes,
+				position, bodyLength);
+		position += bodyLength;
+		System.arraycopy(end, 0, bytes, position, end.length);
+
+		return bytes;
+	}
+
 	/**
 	 * Create a SOAP Fault element and add it to a Body element.
 	 * 
@@ -127,6 +255,114 @@ public class EnvelopeCreator {
 		return envelope;
 	}
 
+	/**
+	 * Return true if the Body of a message can be copied as bytes into an
+	 * envelope that is serialized here. The envelopes are UTF-8, so the
+	 * message must be in UTF-8 or US-ASCII.
+	 * 
+	 * @param headerInfo
+	 *            Can be null.
+	 * @return
+	 */
+	private static boolean canSplice(EcpHeaderInfo headerInfo) {
+
+		if (headerInfo == null || !headerInfo.hasBody())
+			return false;
+
+		if (!headerInfo.isUtf8()) {
+			logger.debug("Not copying a Body in " + headerInfo.getEncoding()
+					+ " into a UTF-8 envelope.");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Concatenate a start, a slice of a message and an end into one byte
+	 * array of exactly the right size.
+	 * 
+	 * @param start
+	 * @param message
+	 * @param offset
+	 * @param length
+	 * @param end
+	 * @return
+	 */
+	private static byte[] concat(byte[] start, byte[] message, int offset,
+			int length, byte[] end) {
+
+		byte[] bytes = new byte[start.length + length + end.length];
+
+		System.arraycopy(start, 0, bytes, 0, start.length);
+		System.arraycopy(message, offset, bytes, start.length, length);
+		System.arraycopy(end, 0, bytes, start.length + length, end.length);
+
+		return bytes;
+	}
+
+	/**
+	 * Serialize a start tag with namespace declarations.
+	 * 
+	 * @param name
+	 *            Qualified element name.
+	 * @param namespaces
+	 *            prefix -> URI, "" is the default namespace.
+	 * @return
+	 */
+	private static String startTag(String name, Map<String, String> namespaces) {
+
+		StringBuilder tag = new StringBuilder("<").append(name);
+
+		for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+			tag.append(namespace.getKey().length() == 0 ? " xmlns"
+					: " xmlns:" + namespace.getKey());
+			tag.append("=\"").append(escapeAttribute(namespace.getValue()))
+					.append('"');
+		}
+		return tag.append('>').toString();
+	}
+
+	private static String qualifiedName(String prefix, String localName) {
+		return prefix.length() == 0 ? localName : prefix + ":" + localName;
+	}
+
+	/**
+	 * Escape a value for use in a double quoted attribute.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	static String escapeAttribute(String value) {
+		StringBuilder escaped = new StringBuilder(value.length());
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '&':
+				escaped.append("&amp;");
+				break;
+			case '<':
+				escaped.append("&lt;");
+				break;
+			case '"':
+				escaped.append("&quot;");
+				break;
+			default:
+				escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+
+	static byte[] utf8(String string) {
+		try {
+			return string.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported.
+			throw new IllegalStateException(e);
+		}
+	}
+
 	/**
 	 * Generates a random String value.
 	 * 
@@ -15,20 +15,37 @@
  * ***************************************************************************/
 package jettyClient.EnvelopeHandling;
 
+import jettyClient.parser.ParseHelper;
+
 import org.opensaml.ws.soap.soap11.Body;
 import org.opensaml.ws.soap.soap11.Envelope;
 import org.opensaml.ws.soap.soap11.Header;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 
 // Could store the content as text, but then one would need separate
 // schemas in order to parse the xml back to an XMLObject.
 
+/**
+ * EnvelopeParts holds the Header, the Body and the (emptied) Envelope of a
+ * SOAP Envelope.
+ * 
+ * When created from an Envelope element, the parts are unmarshalled from the
+ * DOM only when they are asked for. A Body that is only forwarded is never
+ * unmarshalled.
+ */
 public class EnvelopeParts {
 
 	private Header header;
 	private Body body;
 	private Envelope envelope;
 
+	/* The DOM the parts are unmarshalled from, null when created from parts. */
+	private Element envelopeElement;
+	private Element headerElement;
+	private Element bodyElement;
+
 	/**
 	 * Constructor, store envelope parts.
 	 * 
@@ -43,18 +60,83 @@ public class EnvelopeParts {
 		this.envelope = envelope;
 	}	
 	
+	/**
+	 * Constructor, store an Envelope element. The Header and Body elements
+	 * are looked up but not unmarshalled, and the DOM is not modified.
+	 * 
+	 * @param envelopeElement
+	 */
+	public EnvelopeParts(Element envelopeElement) {
+
+		this.envelopeElement = envelopeElement;
+
+		for (Node node = envelopeElement.getFirstChild(); node != null; node = node
+				.getNextSibling()) {
+			if (node.getNodeType() != Node.ELEMENT_NODE)
+				continue;
+
+			if (Header.DEFAULT_ELEMENT_NAME.equals(ParseHelper
+					.getDefaultElementName(node))) {
+				headerElement = (Element) node;
+			} else if (Body.DEFAULT_ELEMENT_NAME.equals(ParseHelper
+					.getDefaultElementName(node))) {
+				bodyElement = (Element) node;
+			}
+		}
+	}
+	
 	/* Getters and setters */
 	
-	public Header getHeader() {
+	/**
+	 * Return the Header, unmarshalled on first access. Null if the Envelope
+	 * had no Header.
+	 * 
+	 * @return
+	 */
+	public synchronized Header getHeader() {
+		if (header == null && headerElement != null) {
+			header = (Header) ParseHelper.unmarshall(headerElement);
+		}
 		return header;
 	}
 
-	public Body getBody() {
+	/**
+	 * Return the Body, unmarshalled on first access. Null if the Envelope had
+	 * no Body.
+	 * 
+	 * @return
+	 */
+	public synchronized Body getBody() {
+		if (body == null && bodyElement != null) {
+			body = (Body) ParseHelper.unmarshall(bodyElement);
+		}
 		return body;
 	}
 
-	public Envelope getEnvelope() {
+	/**
+	 * Return the Envelope without Header and Body, unmarshalled on first
+	 * access.
+	 * 
+	 * @return
+	 */
+	public synchronized Envelope getEnvelope() {
+		if (envelope == null && envelopeElement != null) {
+			// A shallow copy keeps the attributes and namespace declarations
+			// but not the Header and Body.
+			envelope = (Envelope) ParseHelper
+					.unmarshall((Element) envelopeElement.cloneNode(false));
+		}
 		return envelope;
 	}
 	
+	/**
+	 * Return the Body element without unmarshalling it. Null if the parts
+	 * were not created from an Envelope element, or there was no Body.
+	 * 
+	 * @return
+	 */
+	public Element getBodyElement() {
+		return bodyElement;
+	}
+	
 }
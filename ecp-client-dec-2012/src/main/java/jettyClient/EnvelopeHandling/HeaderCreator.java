@@ -16,6 +16,7 @@
 
 package jettyClient.EnvelopeHandling;
 
+import org.opensaml.common.xml.SAMLConstants;
 import org.opensaml.ws.soap.soap11.Header;
 
 import jettyClient.parser.ParseHelper;
@@ -24,6 +25,38 @@ import ecp.liberty.paos.Response;
 
 public class HeaderCreator {
 	
+	/* Serialized header for the envelope sent to the SP, see
+	 * buildPaosResponseBlock(). The prefix S must be bound to the SOAP
+	 * namespace by the enclosing Envelope. The refToMessageID attribute,
+	 * when there is one, goes between the start and the end. */
+	private static final String PAOS_RESPONSE_HEADER_START = "<S:Header>"
+			+ "<paos:Response xmlns:paos=\"" + SAMLConstants.PAOS_NS + "\""
+			+ " S:actor=\"http://schemas.xmlsoap.org/soap/actor/next\""
+			+ " S:mustUnderstand=\"1\"";
+	private static final String PAOS_RESPONSE_HEADER_END = "/></S:Header>";
+	
+	private static final byte[] PAOS_RESPONSE_HEADER = EnvelopeCreator
+			.utf8(PAOS_RESPONSE_HEADER_START + PAOS_RESPONSE_HEADER_END);
+	
+	/**
+	 * Return the serialized Header for the envelope sent from the ECP to an
+	 * SP. Without a refToMessageID the same constant bytes are returned every
+	 * time, and must not be modified.
+	 * 
+	 * @param refToMessageID
+	 *            The messageID of the PAOS request, or null.
+	 * @return
+	 */
+	public static byte[] serializedEcpToSpHeader(String refToMessageID) {
+		if (refToMessageID == null)
+			return PAOS_RESPONSE_HEADER;
+		
+		return EnvelopeCreator.utf8(PAOS_RESPONSE_HEADER_START + " "
+				+ Response.REF_TO_MESSAGE_ID_ATTRIB_NAME + "=\""
+				+ EnvelopeCreator.escapeAttribute(refToMessageID) + "\""
+				+ PAOS_RESPONSE_HEADER_END);
+	}
+	
 	/**
 	 * Build a Header for the Assertion Envelope
 	 * sent from the ECP to an SP. The Header contains
@@ -0,0 +1,256 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+package jettyClient.metadata;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jettyClient.simpleClient.ClientConfiguration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CircuitBreaker tracks the health of one IdP, so that logins against an
+ * IdP that is down fail at once instead of waiting for a timeout.
+ *
+ * The breaker is closed while the IdP answers. After a number of failures
+ * in a row it opens, and requests are refused. A request that gets no
+ * response, a 5xx response, or a response slower than the latency SLO
+ * counts as a failure. After the open time the breaker is half open: a few
+ * probe logins are let through. A successful probe closes the breaker, a
+ * failed one opens it again.
+ *
+ * There is one breaker per IdP, keyed by the providerID of its metadata
+ * entry. The state and the number of transitions can be read for
+ * monitoring.
+ *
+ * @author carolina
+ *
+ */
+public class CircuitBreaker {
+
+	/**
+	 * The states of a breaker.
+	 */
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	// Client logger
+	private final static Logger logger = LoggerFactory
+			.getLogger(ClientConfiguration.logger);
+
+	private static final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+	private final String providerID;
+	private final int failureThreshold;
+	private final long openTime;
+	private final long latencySlo;
+	private final int halfOpenProbes;
+
+	/* Guarded by this */
+	private State state = State.CLOSED;
+	private int consecutiveFailures = 0;
+	private long openedAt = 0;
+	private int probesInFlight = 0;
+	private long lastProbeAt = 0;
+
+	/* Transitions into each state, and refused requests */
+	private final AtomicLong[] transitions = new AtomicLong[State.values().length];
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param providerID
+	 * @param failureThreshold
+	 *            Failures in a row that open the breaker.
+	 * @param openTime
+	 *            How long the breaker stays open, in milliseconds.
+	 * @param latencySlo
+	 *            A response slower than this counts as a failure, in
+	 *            milliseconds. 0 means no SLO.
+	 * @param halfOpenProbes
+	 *            How many probe requests may run while half open.
+	 */
+	public CircuitBreaker(String providerID, int failureThreshold,
+			long openTime, long latencySlo, int halfOpenProbes) {
+		this.providerID = providerID;
+		this.failureThreshold = failureThreshold;
+		this.openTime = openTime;
+		this.latencySlo = latencySlo;
+		this.halfOpenProbes = halfOpenProbes;
+
+		for (int i = 0; i < transitions.length; i++)
+			transitions[i] = new AtomicLong();
+	}
+
+	/**
+	 * Return the breaker of an IdP, created with the settings of
+	 * ClientConfiguration the first time it is asked for.
+	 *
+	 * @param providerID
+	 * @return
+	 */
+	public static CircuitBreaker forIdp(String providerID) {
+
+		CircuitBreaker breaker = breakers.get(providerID);
+
+		if (breaker == null) {
+			CircuitBreaker created = new CircuitBreaker(providerID,
+					ClientConfiguration.circuitFailureThreshold,
+					ClientConfiguration.circuitOpenTime,
+					ClientConfiguration.circuitLatencySlo,
+					ClientConfiguration.circuitHalfOpenProbes);
+			breaker = breakers.putIfAbsent(providerID, created);
+			if (breaker == null)
+				breaker = created;
+		}
+		return breaker;
+	}
+
+	/**
+	 * Return true if a request may be sent to the IdP. While half open, an
+	 * allowed request is a probe, and its outcome must be recorded.
+	 *
+	 * A probe that is not sent must be given back with releaseProbe(). A
+	 * probe whose outcome is never recorded is given up after the open time,
+	 * so the breaker can not stay half open.
+	 *
+	 * @return
+	 */
+	public synchronized boolean allowRequest() {
+
+		long now = System.currentTimeMillis();
+
+		if (state == State.OPEN) {
+			if (now - openedAt < openTime) {
+				rejected.incrementAndGet();
+				return false;
+			}
+			transition(State.HALF_OPEN);
+			probesInFlight = 0;
+		}
+
+		if (state == State.HALF_OPEN) {
+			if (probesInFlight >= halfOpenProbes
+					&& now - lastProbeAt < openTime) {
+				rejected.incrementAndGet();
+				return false;
+			}
+			if (probesInFlight >= halfOpenProbes)
+				probesInFlight = 0;
+			probesInFlight++;
+			lastProbeAt = now;
+		}
+		return true;
+	}
+
+	/**
+	 * Record a response from the IdP. A response slower than the latency
+	 * SLO is recorded as a failure.
+	 *
+	 * @param latency
+	 *            How long the request took, in milliseconds.
+	 */
+	public synchronized void recordSuccess(long latency) {
+
+		if (latencySlo > 0 && latency > latencySlo) {
+			logger.debug("IdP " + providerID + " took " + latency + " ms.");
+			recordFailure();
+			return;
+		}
+
+		consecutiveFailures = 0;
+
+		if (state == State.HALF_OPEN) {
+			probesInFlight = 0;
+			transition(State.CLOSED);
+		}
+	}
+
+	/**
+	 * Record a request that got no response, or a server error.
+	 */
+	public synchronized void recordFailure() {
+
+		consecutiveFailures++;
+
+		if (state == State.HALF_OPEN
+				|| (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+			probesInFlight = 0;
+			openedAt = System.currentTimeMillis();
+			transition(State.OPEN);
+		}
+	}
+
+	/**
+	 * Give back the probe slot of an allowed request that was never sent,
+	 * for example because a Bulkhead rejected it. Such a request says
+	 * nothing about the IdP, and must not hold a probe slot.
+	 */
+	public synchronized void releaseProbe() {
+		if (state == State.HALF_OPEN && probesInFlight > 0)
+			probesInFlight--;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	public String getProviderID() {
+		return providerID;
+	}
+
+	/**
+	 * Return how many times the breaker has gone into a state.
+	 *
+	 * @param state
+	 * @return
+	 */
+	public long getTransitions(State state) {
+		return transitions[state.ordinal()].get();
+	}
+
+	/**
+	 * Return how many requests were refused.
+	 *
+	 * @return
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Close the breaker, for example after the IdP has been fixed.
+	 */
+	public synchronized void reset() {
+		consecutiveFailures = 0;
+		probesInFlight = 0;
+		if (state != State.CLOSED)
+			transition(State.CLOSED);
+	}
+
+	private void transition(State next) {
+		logger.info("Circuit breaker of IdP " + providerID + ": " + state
+				+ " -> " + next);
+		state = next;
+		transitions[next.ordinal()].incrementAndGet();
+	}
+}
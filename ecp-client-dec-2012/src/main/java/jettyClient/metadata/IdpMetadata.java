@@ -16,7 +16,11 @@
 package jettyClient.metadata;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 
 import jettyClient.parser.MetadataParser;
 import jettyClient.simpleClient.ClientConfiguration;
@@ -31,6 +35,11 @@ public class IdpMetadata {
 
 	private HashMap<String, IDPEntry> idpList;
 
+	/* ProviderIDs of the IdPs that use preemptive authentication */
+	private Set<String> preemptiveAuthentication = Collections
+			.synchronizedSet(new HashSet<String>(Arrays
+					.asList(ClientConfiguration.preemptiveAuthenticationIdps)));
+
 	// Client logger
 	private final static Logger logger = LoggerFactory
 			.getLogger(ClientConfiguration.logger);
@@ -110,4 +119,40 @@ public class IdpMetadata {
 		return idpList;
 	}
 
+	/**
+	 * Returns the circuit breaker that tracks the health of an IdP.
+	 * 
+	 * @param providerID
+	 * @return
+	 */
+	public CircuitBreaker getCircuitBreaker(String providerID) {
+		return CircuitBreaker.forIdp(providerID);
+	}
+
+	/**
+	 * Returns true if the credentials are sent to the IdP with the first
+	 * request, without waiting for it to ask for them.
+	 * 
+	 * @param providerID
+	 * @return
+	 */
+	public boolean isPreemptiveAuthentication(String providerID) {
+		return preemptiveAuthentication.contains(providerID);
+	}
+
+	/**
+	 * Send the credentials to the IdP with the first request, or not. Only
+	 * for IdPs that are known to use HTTP BASIC authentication.
+	 * 
+	 * @param providerID
+	 * @param preemptive
+	 */
+	public void setPreemptiveAuthentication(String providerID,
+			boolean preemptive) {
+		if (preemptive)
+			preemptiveAuthentication.add(providerID);
+		else
+			preemptiveAuthentication.remove(providerID);
+	}
+
 }
@@ -18,6 +18,7 @@ package jettyClient.objectProviderRegisterer;
 
 import javax.xml.namespace.QName;
 
+import jettyClient.parser.ObjectProviders;
 import jettyClient.simpleClient.ClientConfiguration;
 
 import org.opensaml.xml.Configuration;
@@ -52,6 +53,9 @@ public class ObjectProviderRegisterer {
 		registerObjectProvider(Response.DEFAULT_ELEMENT_NAME,
 				new ResponseBuilder(), new ResponseMarshaller(),
 				new ResponseUnmarshaller());
+		
+		// Cache the providers of the element types the client handles.
+		ObjectProviders.load();
 	}
 
 	/**
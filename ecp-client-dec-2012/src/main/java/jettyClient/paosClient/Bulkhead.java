@@ -0,0 +1,249 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.paosClient;
+
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jettyClient.simpleClient.ClientConfiguration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bulkhead limits how many requests are sent at the same time to one origin
+ * (host and port), so that a slow IdP or SP can not take all connections and
+ * threads of the client.
+ *
+ * A request that finds all permits taken waits in a queue. When the queue
+ * is full, the request is rejected at once. A blocking caller waits for a
+ * permit; an asynchronous request is queued as a task that is run when a
+ * permit is released, without holding a thread.
+ *
+ * There is one bulkhead per origin, with the limits of ClientConfiguration
+ * unless they are configured for the origin.
+ *
+ * @author carolina
+ *
+ */
+public class Bulkhead {
+
+	// Get the client logger
+	private final static Logger logger = LoggerFactory
+			.getLogger(ClientConfiguration.logger);
+
+	private static final ConcurrentHashMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+
+	private final String origin;
+
+	/* Guarded by this */
+	private int limit;
+	private int maxQueued;
+	private int inFlight = 0;
+	private final LinkedList<Runnable> waiting = new LinkedList<Runnable>();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param origin
+	 * @param limit
+	 *            How many requests may run at the same time.
+	 * @param maxQueued
+	 *            How many requests may wait for a permit.
+	 */
+	public Bulkhead(String origin, int limit, int maxQueued) {
+		this.origin = origin;
+		this.limit = limit;
+		this.maxQueued = maxQueued;
+	}
+
+	/**
+	 * Return the bulkhead of an origin, created with the limits of
+	 * ClientConfiguration the first time it is asked for.
+	 *
+	 * @param host
+	 * @param port
+	 * @return
+	 */
+	public static Bulkhead forOrigin(String host, int port) {
+
+		String origin = host.toLowerCase() + ":" + port;
+		Bulkhead bulkhead = bulkheads.get(origin);
+
+		if (bulkhead == null) {
+			Bulkhead created = new Bulkhead(origin,
+					ClientConfiguration.bulkheadLimit,
+					ClientConfiguration.bulkheadMaxQueued);
+			bulkhead = bulkheads.putIfAbsent(origin, created);
+			if (bulkhead == null)
+				bulkhead = created;
+		}
+		return bulkhead;
+	}
+
+	/**
+	 * Set the limits of an origin, for example a partner IdP that can only
+	 * take a few logins at a time.
+	 *
+	 * @param host
+	 * @param port
+	 * @param limit
+	 * @param maxQueued
+	 */
+	public static void configure(String host, int port, int limit,
+			int maxQueued) {
+		forOrigin(host, port).setLimits(limit, maxQueued);
+	}
+
+	public synchronized void setLimits(int limit, int maxQueued) {
+		this.limit = limit;
+		this.maxQueued = maxQueued;
+	}
+
+	/**
+	 * Wait for a permit. Returns false if the queue is full, or no permit
+	 * was released before the timeout.
+	 *
+	 * @param timeout
+	 *            In milliseconds.
+	 * @return
+	 */
+	public boolean acquire(long timeout) {
+
+		final CountDownLatch latch = new CountDownLatch(1);
+		Runnable waiter = new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		};
+
+		synchronized (this) {
+			if (inFlight < limit) {
+				inFlight++;
+				return true;
+			}
+			if (waiting.size() >= maxQueued) {
+				reject();
+				return false;
+			}
+			waiting.add(waiter);
+		}
+
+		try {
+			if (latch.await(timeout, TimeUnit.MILLISECONDS))
+				return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (this) {
+			if (waiting.remove(waiter)) {
+				reject();
+				return false;
+			}
+		}
+		// The permit was handed over while the wait ended.
+		return true;
+	}
+
+	/**
+	 * Run a task with a permit: now, in the calling thread, if a permit is
+	 * free, or later, in the thread that releases a permit. The task owns
+	 * the permit and must release it. Returns false if the queue is full.
+	 *
+	 * @param task
+	 * @return
+	 */
+	public boolean offer(Runnable task) {
+
+		synchronized (this) {
+			if (inFlight >= limit) {
+				if (waiting.size() >= maxQueued) {
+					reject();
+					return false;
+				}
+				waiting.add(task);
+				return true;
+			}
+			inFlight++;
+		}
+		task.run();
+		return true;
+	}
+
+	/**
+	 * Remove a task from the queue, because it has waited too long. Returns
+	 * false if it is not queued: it has been run, or is running. A removed
+	 * task is counted as rejected.
+	 *
+	 * @param task
+	 * @return
+	 */
+	public synchronized boolean remove(Runnable task) {
+		if (!waiting.remove(task))
+			return false;
+		reject();
+		return true;
+	}
+
+	/**
+	 * Release a permit. If a request is waiting, the permit is handed over to
+	 * it.
+	 */
+	public void release() {
+
+		Runnable next;
+
+		synchronized (this) {
+			if (inFlight > limit || waiting.isEmpty()) {
+				inFlight--;
+				return;
+			}
+			next = waiting.removeFirst();
+		}
+		next.run();
+	}
+
+	public String getOrigin() {
+		return origin;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	public synchronized int getQueued() {
+		return waiting.size();
+	}
+
+	/**
+	 * Return how many requests were rejected.
+	 *
+	 * @return
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	private void reject() {
+		rejected.incrementAndGet();
+		logger.debug("Too many requests to " + origin + ", rejected.");
+	}
+}
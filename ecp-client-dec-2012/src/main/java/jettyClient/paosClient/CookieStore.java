@@ -0,0 +1,674 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.paosClient;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jettyClient.simpleClient.ClientConfiguration;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeaders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CookieStore keeps the cookies that the SPs and IdPs of one client session
+ * set, as described in RFC 6265: every Set-Cookie header of a response is
+ * stored by domain and path, and the matching cookies are sent back in the
+ * Cookie header of the following requests.
+ *
+ * Expired cookies are never sent. The number of cookies per domain and in
+ * total is bounded, the oldest cookies are evicted first.
+ *
+ * The store can be shared by concurrent exchanges.
+ *
+ * @author carolina
+ *
+ */
+public class CookieStore {
+
+	// Get the client logger
+	private final static Logger logger = LoggerFactory
+			.getLogger(ClientConfiguration.logger);
+
+	/* Date formats seen in Expires attributes. */
+	private static final String[] dateFormats = new String[] {
+			"EEE, dd MMM yyyy HH:mm:ss zzz", "EEE, dd-MMM-yyyy HH:mm:ss zzz",
+			"EEE, dd-MMM-yy HH:mm:ss zzz", "EEE MMM d HH:mm:ss yyyy" };
+
+	/*
+	 * Public suffixes of more than one label, under which anyone can
+	 * register a domain. Every single label domain is a public suffix too.
+	 */
+	private static final Set<String> publicSuffixes = new HashSet<String>(
+			Arrays.asList("ac.uk", "co.uk", "gov.uk", "ltd.uk", "me.uk",
+					"net.uk", "nhs.uk", "org.uk", "plc.uk", "sch.uk",
+					"asn.au", "com.au", "edu.au", "gov.au", "id.au", "net.au",
+					"org.au", "ac.nz", "co.nz", "govt.nz", "net.nz", "org.nz",
+					"ac.jp", "co.jp", "go.jp", "ne.jp", "or.jp", "ac.za",
+					"co.za", "gov.za", "org.za", "com.br", "edu.br", "gov.br",
+					"net.br", "org.br", "ac.cn", "com.cn", "edu.cn", "gov.cn",
+					"net.cn", "org.cn", "ac.in", "co.in", "edu.in", "gov.in",
+					"net.in", "org.in", "ac.kr", "co.kr", "go.kr", "or.kr",
+					"ac.il", "co.il", "org.il", "com.mx", "edu.mx", "gob.mx",
+					"com.sg", "edu.sg", "gov.sg", "com.tw", "edu.tw",
+					"gov.tw", "com.hk", "edu.hk", "gov.hk", "com.tr",
+					"edu.tr", "gov.tr", "com.ar", "edu.ar", "gob.ar"));
+
+	private final int maxCookiesPerDomain;
+	private final int maxCookies;
+
+	/* domain -> (name;path -> cookie), each domain map guarded by itself */
+	private final ConcurrentMap<String, Map<String, Cookie>> domains = new ConcurrentHashMap<String, Map<String, Cookie>>();
+	private final AtomicInteger size = new AtomicInteger(0);
+
+	/**
+	 * Create a store with the limits of ClientConfiguration.
+	 */
+	public CookieStore() {
+		this(ClientConfiguration.maxCookiesPerDomain,
+				ClientConfiguration.maxCookies);
+	}
+
+	public CookieStore(int maxCookiesPerDomain, int maxCookies) {
+		this.maxCookiesPerDomain = maxCookiesPerDomain;
+		this.maxCookies = maxCookies;
+	}
+
+	/**
+	 * Store the cookies of all Set-Cookie headers in a response.
+	 *
+	 * @param host
+	 *            The host the request was sent to.
+	 * @param requestURI
+	 *            The URI of the request (path and query).
+	 * @param responseFields
+	 *            The response headers.
+	 */
+	public void store(String host, String requestURI, HttpFields responseFields) {
+
+		if (responseFields == null || host == null)
+			return;
+
+		Enumeration<String> values = responseFields
+				.getValues(HttpHeaders.SET_COOKIE);
+
+		while (values != null && values.hasMoreElements()) {
+			store(host, requestURI, values.nextElement());
+		}
+	}
+
+	/**
+	 * Parse and store one Set-Cookie header value. Invalid cookies, and
+	 * cookies for a domain the host does not belong to, are ignored.
+	 *
+	 * @param host
+	 * @param requestURI
+	 * @param setCookie
+	 */
+	public void store(String host, String requestURI, String setCookie) {
+
+		Cookie cookie = parse(host.toLowerCase(Locale.ENGLISH),
+				defaultPath(requestURI), setCookie, System.currentTimeMillis());
+
+		if (cookie == null) {
+			logger.debug("Ignored cookie from " + host + ": " + setCookie);
+			return;
+		}
+
+		put(cookie);
+	}
+
+	/**
+	 * Copy all cookies of another store that have not expired into this
+	 * store. A cookie with the same domain, path and name replaces the
+	 * stored one. The other store is not changed.
+	 *
+	 * @param other
+	 */
+	public void addAll(CookieStore other) {
+
+		long now = System.currentTimeMillis();
+
+		for (Map<String, Cookie> cookies : other.domains.values()) {
+			List<Cookie> copied;
+			synchronized (cookies) {
+				copied = new ArrayList<Cookie>(cookies.values());
+			}
+			for (Cookie cookie : copied) {
+				if (!cookie.isExpired(now))
+					put(cookie);
+			}
+		}
+	}
+
+	/**
+	 * Return a new store, with the same limits, that holds a copy of the
+	 * cookies of this store that have not expired.
+	 *
+	 * @return
+	 */
+	public CookieStore copy() {
+		CookieStore copy = new CookieStore(maxCookiesPerDomain, maxCookies);
+		copy.addAll(this);
+		return copy;
+	}
+
+	/**
+	 * Return a new store, with the same limits, that holds a copy of the
+	 * cookies of this store that would be sent to a host and have not
+	 * expired. Cookies of other domains are left out.
+	 *
+	 * @param host
+	 * @return
+	 */
+	public CookieStore copy(String host) {
+
+		CookieStore copy = new CookieStore(maxCookiesPerDomain, maxCookies);
+
+		if (host == null)
+			return copy;
+
+		host = host.toLowerCase(Locale.ENGLISH);
+		long now = System.currentTimeMillis();
+
+		String domain = host;
+		while (domain != null) {
+			Map<String, Cookie> cookies = domains.get(domain);
+
+			if (cookies != null) {
+				List<Cookie> copied = new ArrayList<Cookie>();
+				synchronized (cookies) {
+					for (Cookie cookie : cookies.values()) {
+						if ((cookie.hostOnly && !domain.equals(host))
+								|| cookie.isExpired(now))
+							continue;
+						copied.add(cookie);
+					}
+				}
+				for (Cookie cookie : copied)
+					copy.put(cookie);
+			}
+
+			domain = parentDomain(domain);
+		}
+		return copy;
+	}
+
+	/**
+	 * Store a cookie, replacing the one with the same name and path.
+	 *
+	 * @param cookie
+	 */
+	private void put(Cookie cookie) {
+
+		Map<String, Cookie> cookies = domains.get(cookie.domain);
+		if (cookies == null) {
+			Map<String, Cookie> created = new LinkedHashMap<String, Cookie>();
+			cookies = domains.putIfAbsent(cookie.domain, created);
+			if (cookies == null)
+				cookies = created;
+		}
+
+		synchronized (cookies) {
+			String key = cookie.name + ";" + cookie.path;
+			Cookie old = cookies.remove(key);
+
+			if (old != null) {
+				size.decrementAndGet();
+				// Keep the creation time of the replaced cookie.
+				cookie = cookie.createdAt(old.created);
+			}
+
+			// An expiry in the past deletes the cookie.
+			if (cookie.isExpired(System.currentTimeMillis()))
+				return;
+
+			cookies.put(key, cookie);
+			size.incrementAndGet();
+
+			if (cookies.size() > maxCookiesPerDomain)
+				evictOldest(cookies);
+		}
+
+		if (size.get() > maxCookies)
+			evict();
+	}
+
+	/**
+	 * Return the value of the Cookie header for a request, or null if no
+	 * stored cookie matches.
+	 *
+	 * @param host
+	 * @param path
+	 *            The path of the request URI.
+	 * @param secure
+	 *            True if the request is sent over HTTPS.
+	 * @return
+	 */
+	public String getCookieHeader(String host, String path, boolean secure) {
+
+		if (host == null)
+			return null;
+
+		host = host.toLowerCase(Locale.ENGLISH);
+		path = requestPath(path);
+		long now = System.currentTimeMillis();
+
+		List<Cookie> matching = new ArrayList<Cookie>();
+
+		// The host itself and every parent domain, unless it is an IP
+		// address.
+		String domain = host;
+		while (domain != null) {
+			Map<String, Cookie> cookies = domains.get(domain);
+
+			if (cookies != null) {
+				synchronized (cookies) {
+					for (Cookie cookie : cookies.values()) {
+						if (cookie.hostOnly && !domain.equals(host))
+							continue;
+						if (cookie.secure && !secure)
+							continue;
+						if (cookie.isExpired(now) || !pathMatches(path, cookie.path))
+							continue;
+						matching.add(cookie);
+					}
+				}
+			}
+
+			domain = parentDomain(domain);
+		}
+
+		if (matching.isEmpty())
+			return null;
+
+		// Longer paths first, then older cookies first.
+		Collections.sort(matching, new Comparator<Cookie>() {
+			public int compare(Cookie a, Cookie b) {
+				if (a.path.length() != b.path.length())
+					return b.path.length() - a.path.length();
+				return a.created < b.created ? -1 : (a.created == b.created ? 0
+						: 1);
+			}
+		});
+
+		StringBuilder header = new StringBuilder();
+		for (Cookie cookie : matching) {
+			if (header.length() > 0)
+				header.append("; ");
+			header.append(cookie.name).append('=').append(cookie.value);
+		}
+		return header.toString();
+	}
+
+	/**
+	 * Return the earliest expiry time of the cookies that would be sent to
+	 * a host, Long.MAX_VALUE if they are all session cookies, or -1 if there
+	 * are none.
+	 *
+	 * @param host
+	 * @return Expiry time in milliseconds.
+	 */
+	public long getEarliestExpiry(String host) {
+
+		if (host == null)
+			return -1;
+
+		host = host.toLowerCase(Locale.ENGLISH);
+		long now = System.currentTimeMillis();
+		long earliest = -1;
+
+		String domain = host;
+		while (domain != null) {
+			Map<String, Cookie> cookies = domains.get(domain);
+
+			if (cookies != null) {
+				synchronized (cookies) {
+					for (Cookie cookie : cookies.values()) {
+						if ((cookie.hostOnly && !domain.equals(host))
+								|| cookie.isExpired(now))
+							continue;
+						if (earliest == -1 || cookie.expires < earliest)
+							earliest = cookie.expires;
+					}
+				}
+			}
+
+			domain = parentDomain(domain);
+		}
+		return earliest;
+	}
+
+	/**
+	 * Remove all expired cookies.
+	 */
+	public void removeExpired() {
+
+		long now = System.currentTimeMillis();
+
+		for (Map<String, Cookie> cookies : domains.values()) {
+			synchronized (cookies) {
+				Iterator<Cookie> iterator = cookies.values().iterator();
+				while (iterator.hasNext()) {
+					if (iterator.next().isExpired(now)) {
+						iterator.remove();
+						size.decrementAndGet();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove all cookies.
+	 */
+	public void clear() {
+		for (Map<String, Cookie> cookies : domains.values()) {
+			synchronized (cookies) {
+				size.addAndGet(-cookies.size());
+				cookies.clear();
+			}
+		}
+	}
+
+	/**
+	 * Return the number of stored cookies, expired cookies included.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Bring the store under its total limit: remove expired cookies, then the
+	 * oldest cookies.
+	 */
+	private void evict() {
+
+		removeExpired();
+
+		while (size.get() > maxCookies) {
+			Map<String, Cookie> oldestDomain = null;
+			long oldest = Long.MAX_VALUE;
+
+			for (Map<String, Cookie> cookies : domains.values()) {
+				synchronized (cookies) {
+					for (Cookie cookie : cookies.values()) {
+						if (cookie.created < oldest) {
+							oldest = cookie.created;
+							oldestDomain = cookies;
+						}
+					}
+				}
+			}
+
+			if (oldestDomain == null)
+				return;
+
+			synchronized (oldestDomain) {
+				evictOldest(oldestDomain);
+			}
+		}
+	}
+
+	/**
+	 * Remove the expired cookies of a domain, or else its oldest cookie.
+	 * Called with the domain map locked.
+	 *
+	 * @param cookies
+	 */
+	private void evictOldest(Map<String, Cookie> cookies) {
+
+		long now = System.currentTimeMillis();
+		String oldestKey = null;
+		long oldest = Long.MAX_VALUE;
+		boolean removed = false;
+
+		Iterator<Map.Entry<String, Cookie>> iterator = cookies.entrySet()
+				.iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Cookie> entry = iterator.next();
+			if (entry.getValue().isExpired(now)) {
+				iterator.remove();
+				size.decrementAndGet();
+				removed = true;
+			} else if (entry.getValue().created < oldest) {
+				oldest = entry.getValue().created;
+				oldestKey = entry.getKey();
+			}
+		}
+
+		if (!removed && oldestKey != null) {
+			cookies.remove(oldestKey);
+			size.decrementAndGet();
+		}
+	}
+
+	/* Parsing (RFC 6265 section 5.2) */
+
+	/**
+	 * Parse a Set-Cookie header value. Returns null if the cookie must be
+	 * ignored.
+	 */
+	private static Cookie parse(String host, String defaultPath,
+			String setCookie, long now) {
+
+		if (setCookie == null)
+			return null;
+
+		String[] parts = setCookie.split(";");
+
+		int equals = parts[0].indexOf('=');
+		if (equals < 0)
+			return null;
+
+		String name = parts[0].substring(0, equals).trim();
+		String value = parts[0].substring(equals + 1).trim();
+		if (name.length() == 0)
+			return null;
+
+		long expires = Long.MAX_VALUE; // Session cookie
+		boolean maxAgeSet = false;
+		String domain = null;
+		String path = null;
+		boolean secure = false;
+		boolean httpOnly = false;
+
+		for (int i = 1; i < parts.length; i++) {
+			String attribute = parts[i];
+			int eq = attribute.indexOf('=');
+			String attributeName = (eq < 0 ? attribute : attribute.substring(
+					0, eq)).trim().toLowerCase(Locale.ENGLISH);
+			String attributeValue = eq < 0 ? "" : attribute.substring(eq + 1)
+					.trim();
+
+			if (attributeName.equals("max-age")) {
+				try {
+					long seconds = Long.parseLong(attributeValue);
+					expires = seconds <= 0 ? Long.MIN_VALUE : now + seconds
+							* 1000;
+					maxAgeSet = true;
+				} catch (NumberFormatException e) {
+					// Ignore the attribute.
+				}
+			} else if (attributeName.equals("expires") && !maxAgeSet) {
+				long date = parseDate(attributeValue);
+				if (date != -1)
+					expires = date;
+			} else if (attributeName.equals("domain")) {
+				domain = attributeValue.startsWith(".") ? attributeValue
+						.substring(1) : attributeValue;
+				domain = domain.toLowerCase(Locale.ENGLISH);
+			} else if (attributeName.equals("path")) {
+				path = attributeValue.startsWith("/") ? attributeValue : null;
+			} else if (attributeName.equals("secure")) {
+				secure = true;
+			} else if (attributeName.equals("httponly")) {
+				httpOnly = true;
+			}
+		}
+
+		boolean hostOnly = domain == null || domain.length() == 0;
+
+		if (!hostOnly && isPublicSuffix(domain)) {
+			// RFC 6265 section 5.3 step 5: a public suffix is only allowed
+			// as the host itself, and then the cookie is host-only.
+			if (!domain.equals(host))
+				return null;
+			hostOnly = true;
+		}
+
+		if (hostOnly) {
+			domain = host;
+		} else if (!domainMatches(host, domain)) {
+			// Not the host's domain.
+			return null;
+		}
+
+		return new Cookie(name, value, domain, path == null ? defaultPath
+				: path, hostOnly, secure, httpOnly, expires, now);
+	}
+
+	private static long parseDate(String date) {
+		for (String format : dateFormats) {
+			SimpleDateFormat parser = new SimpleDateFormat(format, Locale.US);
+			parser.setTimeZone(TimeZone.getTimeZone("GMT"));
+			try {
+				return parser.parse(date).getTime();
+			} catch (ParseException e) {
+				// Try the next format.
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * The directory of the request path (RFC 6265 section 5.1.4).
+	 */
+	private static String defaultPath(String requestURI) {
+		String path = requestPath(requestURI);
+		int slash = path.lastIndexOf('/');
+		return slash <= 0 ? "/" : path.substring(0, slash);
+	}
+
+	/**
+	 * The path of a request URI, without the query.
+	 */
+	private static String requestPath(String requestURI) {
+		if (requestURI == null || !requestURI.startsWith("/"))
+			return "/";
+		int query = requestURI.indexOf('?');
+		return query < 0 ? requestURI : requestURI.substring(0, query);
+	}
+
+	/**
+	 * RFC 6265 section 5.1.3: an IP address only matches itself.
+	 */
+	private static boolean domainMatches(String host, String domain) {
+		return host.equals(domain)
+				|| (host.endsWith("." + domain) && !isIpAddress(host));
+	}
+
+	/**
+	 * Return true if anyone can register a domain under the given one: a top
+	 * level domain, or one of the known public suffixes of more labels.
+	 */
+	private static boolean isPublicSuffix(String domain) {
+		return domain.indexOf('.') < 0 || publicSuffixes.contains(domain);
+	}
+
+	/**
+	 * The domain without its first label, or null if it has no parent. An IP
+	 * address has no parent domains.
+	 */
+	private static String parentDomain(String domain) {
+		int dot = domain.indexOf('.');
+		return dot < 0 || isIpAddress(domain) ? null : domain.substring(dot + 1);
+	}
+
+	private static boolean isIpAddress(String host) {
+		// IPv6 literals contain colons, IPv4 literals are dotted numbers.
+		return host.indexOf(':') >= 0 || host.matches("[0-9]+(\\.[0-9]+)*");
+	}
+
+	private static boolean pathMatches(String requestPath, String cookiePath) {
+		if (requestPath.equals(cookiePath))
+			return true;
+		if (!requestPath.startsWith(cookiePath))
+			return false;
+		return cookiePath.endsWith("/")
+				|| requestPath.charAt(cookiePath.length()) == '/';
+	}
+
+	/**
+	 * A stored cookie. Immutable.
+	 */
+	private static class Cookie {
+
+		private final String name;
+		private final String value;
+		private final String domain;
+		private final String path;
+		private final boolean hostOnly;
+		private final boolean secure;
+		private final boolean httpOnly;
+		private final long expires;
+		private final long created;
+
+		private Cookie(String name, String value, String domain, String path,
+				boolean hostOnly, boolean secure, boolean httpOnly,
+				long expires, long created) {
+			this.name = name;
+			this.value = value;
+			this.domain = domain;
+			this.path = path;
+			this.hostOnly = hostOnly;
+			this.secure = secure;
+			this.httpOnly = httpOnly;
+			this.expires = expires;
+			this.created = created;
+		}
+
+		private Cookie createdAt(long created) {
+			return new Cookie(name, value, domain, path, hostOnly, secure,
+					httpOnly, expires, created);
+		}
+
+		private boolean isExpired(long now) {
+			return expires <= now;
+		}
+	}
+}
@@ -19,8 +19,11 @@ package jettyClient.paosClient;
 import java.net.URL;
 
 import jettyClient.EnvelopeHandling.EnvelopeParts;
+import jettyClient.parser.EcpHeaderInfo;
+import jettyClient.parser.MessageParser;
 import jettyClient.simpleClient.ClientConfiguration;
 
+import org.eclipse.jetty.client.security.Realm;
 import org.eclipse.jetty.client.security.RealmResolver;
 import org.eclipse.jetty.http.HttpFields;
 import org.opensaml.ws.soap.soap11.Envelope;
@@ -54,14 +57,24 @@ public class ExchangeContent {
 	
 	/* Request parts */
 	private Envelope requestEnvelope = null;
+	private byte[] requestBytes = null;
 	private RealmResolver realmResolver = null;
+	private Realm challengedRealm = null;
+	private boolean preemptiveAuthentication = false;
 	private URL endpointURL = null;
+	private long deadline = 0;
+	private RetryPolicy retryPolicy = null;
+	private boolean replayable = true;
 	
 	/* Response parts */
 //	private Envelope responseEnvelope = null;
 	private EnvelopeParts responseParts = null; 
+	private boolean responsePartsParsed = false;
+	private EcpHeaderInfo responseHeaderInfo = null;
 	private String cookieField = "";
 	private HttpFields headers = null;
+	private int responseStatus = -1;
+	private RetryPolicy.Cause failureCause = null;
 	
 	/* *
 	 * Any response that is not an envelope will be stored here.
@@ -92,18 +105,124 @@ public class ExchangeContent {
 		return requestEnvelope;
 	}
 	
+	/**
+	 * A request envelope that is already serialized. When set, it is sent
+	 * as it is instead of the request Envelope.
+	 * 
+	 * @return
+	 */
+	public byte[] getRequestBytes() {
+		return requestBytes;
+	}
+	
 //	public Envelope getResponseEnvelope() {
 //		return responseEnvelope;
 //	}
 	
+	/**
+	 * The response envelope in parts. The envelope is parsed into a DOM, and
+	 * validated against the SOAP Envelope schema, the first time the parts
+	 * are asked for. Null if the response was not a valid envelope.
+	 * 
+	 * @return
+	 */
 	public EnvelopeParts getResponseParts() {
+		if (!responsePartsParsed && responseHeaderInfo != null) {
+			responseParts = MessageParser.parseEnvelope(responseHeaderInfo
+					.getMessage());
+			responsePartsParsed = true;
+
+			if (responseParts == null)
+				logger.debug("The response is not a valid SOAP Envelope.");
+		}
 		return responseParts;
 	}
 	
+	/**
+	 * The ECP header values of the response envelope, read without
+	 * unmarshalling it. Null if the response was not an envelope.
+	 * 
+	 * @return
+	 */
+	public EcpHeaderInfo getResponseHeaderInfo() {
+		return responseHeaderInfo;
+	}
+	
 	public RealmResolver getRealmResolver() {
 		return realmResolver;
 	}
 	
+	/**
+	 * The realm that answered the first challenge of the endpoint, or null.
+	 * Requests sent again with this content send its credentials right
+	 * away, instead of waiting for another challenge.
+	 * 
+	 * @return
+	 */
+	public Realm getChallengedRealm() {
+		return challengedRealm;
+	}
+	
+	/**
+	 * If true, the credentials of the RealmResolver are sent with the first
+	 * request, instead of after the endpoint has asked for them.
+	 * 
+	 * @return
+	 */
+	public boolean isPreemptiveAuthentication() {
+		return preemptiveAuthentication;
+	}
+	
+	/**
+	 * The URL the request will be sent to, when it is prepared before it is
+	 * sent.
+	 * 
+	 * @return
+	 */
+	public URL getEndpointURL() {
+		return endpointURL;
+	}
+	
+	/**
+	 * The time the exchange must be done by, in milliseconds, or 0 if the
+	 * timeout of the HttpClient is used.
+	 * 
+	 * @return
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+	
+	/**
+	 * The policy for sending the request again if it fails, or null if it
+	 * is sent once.
+	 * 
+	 * @return
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+	
+	/**
+	 * False if the request must not reach the endpoint twice. It is then
+	 * only sent again if no connection could be opened.
+	 * 
+	 * @return
+	 */
+	public boolean isReplayable() {
+		return replayable;
+	}
+	
+	/**
+	 * Why the last attempt to send the request failed, or null if a
+	 * response was received.
+	 * 
+	 * @return
+	 */
+	public RetryPolicy.Cause getFailureCause() {
+		return failureCause;
+	}
+	
 	public String getCookieField() {
 		return cookieField;
 	}
@@ -122,10 +241,42 @@ public class ExchangeContent {
 		this.requestEnvelope = envelope;
 	}
 	
+	public void setRequestBytes(byte[] requestBytes) {
+		this.requestBytes = requestBytes;
+	}
+	
 	public void setRealmResolver(RealmResolver realmResolver) {
 		this.realmResolver = realmResolver;
 	}
 	
+	public void setChallengedRealm(Realm challengedRealm) {
+		this.challengedRealm = challengedRealm;
+	}
+	
+	public void setPreemptiveAuthentication(boolean preemptiveAuthentication) {
+		this.preemptiveAuthentication = preemptiveAuthentication;
+	}
+	
+	public void setEndpointURL(URL endpointURL) {
+		this.endpointURL = endpointURL;
+	}
+	
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+	
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+	
+	public void setReplayable(boolean replayable) {
+		this.replayable = replayable;
+	}
+	
+	public void setFailureCause(RetryPolicy.Cause failureCause) {
+		this.failureCause = failureCause;
+	}
+	
 	public void setCookieField(String cookieField) {
 		this.cookieField = cookieField;
 	}
@@ -136,6 +287,19 @@ public class ExchangeContent {
 
 	public void setResponseParts(EnvelopeParts responseParts) {
 		this.responseParts = responseParts;		
+		this.responsePartsParsed = responseParts != null;
+	}
+
+	/**
+	 * Set the ECP header values of the response envelope. The parts of the
+	 * envelope are parsed from its message when they are first asked for.
+	 * 
+	 * @param responseHeaderInfo
+	 */
+	public void setResponseHeaderInfo(EcpHeaderInfo responseHeaderInfo) {
+		this.responseHeaderInfo = responseHeaderInfo;
+		this.responseParts = null;
+		this.responsePartsParsed = false;
 	}
 
 	public void setOtherResponse(byte[] otherResponse) {
@@ -145,4 +309,17 @@ public class ExchangeContent {
 	public HttpFields getHeaders() {
 		return headers;
 	}
+	
+	/**
+	 * The HTTP status of the response, -1 if no response was received.
+	 * 
+	 * @return
+	 */
+	public int getResponseStatus() {
+		return responseStatus;
+	}
+	
+	public void setResponseStatus(int responseStatus) {
+		this.responseStatus = responseStatus;
+	}
 }
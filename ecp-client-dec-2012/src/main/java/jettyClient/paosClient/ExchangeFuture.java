@@ -0,0 +1,184 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.paosClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import jettyClient.simpleClient.ClientConfiguration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ExchangeFuture is the result of an asynchronous exchange. It is completed
+ * with the same ExchangeContent that the blocking method would have
+ * returned, or fails if the exchange could not be processed.
+ *
+ * Instead of blocking in get(), a caller can add an ExchangeListener that is
+ * notified when the future is done, which allows exchanges to be chained
+ * without holding a thread.
+ *
+ * @author carolina
+ *
+ */
+public class ExchangeFuture implements Future<ExchangeContent> {
+
+	// Get the client logger
+	private final static Logger logger = LoggerFactory
+			.getLogger(ClientConfiguration.logger);
+
+	private final CountDownLatch latch = new CountDownLatch(1);
+
+	/* Guarded by this */
+	private boolean done = false;
+	private ExchangeContent content = null;
+	private Throwable failure = null;
+	private List<ExchangeListener> listeners = new ArrayList<ExchangeListener>();
+
+	/**
+	 * Complete the future with a result. Has no effect if the future is
+	 * already done.
+	 *
+	 * @param content
+	 * @return true if the future was completed by this call.
+	 */
+	public boolean complete(ExchangeContent content) {
+		return finish(content, null);
+	}
+
+	/**
+	 * Fail the future. Has no effect if the future is already done.
+	 *
+	 * @param failure
+	 * @return true if the future was failed by this call.
+	 */
+	public boolean fail(Throwable failure) {
+		return finish(null, failure);
+	}
+
+	/**
+	 * Add a listener. If the future is already done the listener is notified
+	 * at once, in the calling thread.
+	 *
+	 * @param listener
+	 */
+	public void addListener(ExchangeListener listener) {
+		synchronized (this) {
+			if (!done) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		notify(listener);
+	}
+
+	/**
+	 * Return the result without waiting. Null if the future is not done or
+	 * has failed.
+	 *
+	 * @return
+	 */
+	public synchronized ExchangeContent getContent() {
+		return content;
+	}
+
+	/**
+	 * Return the reason the future failed, or null.
+	 *
+	 * @return
+	 */
+	public synchronized Throwable getFailure() {
+		return failure;
+	}
+
+	/* Future */
+
+	/**
+	 * Exchanges that have been sent can not be cancelled.
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	public ExchangeContent get() throws InterruptedException,
+			ExecutionException {
+		latch.await();
+		return result();
+	}
+
+	public ExchangeContent get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		if (!latch.await(timeout, unit))
+			throw new TimeoutException();
+		return result();
+	}
+
+	private synchronized ExchangeContent result() throws ExecutionException {
+		if (failure != null)
+			throw new ExecutionException(failure);
+		return content;
+	}
+
+	/**
+	 * Store the outcome and notify the listeners, outside of the lock.
+	 */
+	private boolean finish(ExchangeContent content, Throwable failure) {
+
+		List<ExchangeListener> toNotify;
+
+		synchronized (this) {
+			if (done)
+				return false;
+
+			this.done = true;
+			this.content = content;
+			this.failure = failure;
+
+			toNotify = listeners;
+			listeners = null;
+		}
+
+		latch.countDown();
+
+		for (ExchangeListener listener : toNotify) {
+			notify(listener);
+		}
+		return true;
+	}
+
+	private void notify(ExchangeListener listener) {
+		try {
+			listener.onDone(this);
+		} catch (RuntimeException e) {
+			logger.error("ExchangeListener failed: " + e.toString());
+		}
+	}
+}
@@ -0,0 +1,35 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.paosClient;
+
+/**
+ * Listener that is notified when an ExchangeFuture is done.
+ *
+ * @author carolina
+ *
+ */
+public interface ExchangeListener {
+
+	/**
+	 * Called once, when the future has been completed or has failed. Can be
+	 * called from a Jetty thread, and must not block.
+	 *
+	 * @param future
+	 *            The future that is done.
+	 */
+	public void onDone(ExchangeFuture future);
+}
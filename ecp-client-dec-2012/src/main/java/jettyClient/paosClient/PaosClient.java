@@ -17,24 +17,36 @@
 package jettyClient.paosClient;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
+import jettyClient.parser.EcpHeaderInfo; // streaming header values
+import jettyClient.parser.EnvelopeSniffer; // cheap envelope check
 import jettyClient.parser.MessageParser; // parse text to Envelope
-import jettyClient.parser.ValidateXML; // validates the SOAP envelope.
+import jettyClient.parser.ValidateXML; // schema check without a DOM
 import jettyClient.simpleClient.ClientConfiguration;
 import jettyClient.simpleClient.ClientExchange; // extends HttpContentExchange
 
+import org.eclipse.jetty.client.AbstractHttpConnection;
 import org.eclipse.jetty.client.Address;
 import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpDestination;
+import org.eclipse.jetty.client.security.BasicAuthentication;
+import org.eclipse.jetty.client.security.Realm;
+import org.eclipse.jetty.client.security.RealmResolver;
 import org.eclipse.jetty.http.HttpHeaders;
 import org.eclipse.jetty.http.HttpMethods;
 import org.eclipse.jetty.http.HttpSchemes;
+import org.eclipse.jetty.http.HttpStatus;
 import org.eclipse.jetty.http.MimeTypes;
+import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.util.thread.Timeout;
 
 import org.opensaml.ws.soap.soap11.Body;
 import org.opensaml.ws.soap.soap11.Fault;
@@ -46,14 +58,47 @@ public class PaosClient {
 
 	protected HttpClient httpClient;
 
+	/* The cookies of the client session, or null. */
+	protected CookieStore cookieStore = null;
+
 	// Get the client logger
 	private final static Logger logger = LoggerFactory
 			.getLogger(ClientConfiguration.logger);
 
+	/* Requests that were sent again after a challenge for credentials */
+	private static final AtomicLong challengeRoundTrips = new AtomicLong();
+
 	public PaosClient(HttpClient httpClient) {
 		this.httpClient = httpClient;
 	}
 
+	/**
+	 * Create a PaosClient that stores the cookies of every response in the
+	 * cookie store, and sends the matching cookies with every request.
+	 * 
+	 * @param httpClient
+	 * @param cookieStore
+	 */
+	public PaosClient(HttpClient httpClient, CookieStore cookieStore) {
+		this.httpClient = httpClient;
+		this.cookieStore = cookieStore;
+	}
+
+	public CookieStore getCookieStore() {
+		return cookieStore;
+	}
+
+	/**
+	 * Return the number of requests, of all PaosClients, that were sent again
+	 * because the endpoint answered with a challenge for credentials. With
+	 * preemptive authentication this stays at zero.
+	 * 
+	 * @return
+	 */
+	public static long getChallengeRoundTrips() {
+		return challengeRoundTrips.get();
+	}
+
 	/**
 	 * Send a GET request to the specified URL. Used when the client requests a
 	 * resource from a SP without being authenticated. The expected response is
@@ -65,16 +110,23 @@ public class PaosClient {
 	public ExchangeContent sendHttpGETRequest(URL endpoint,
 			ExchangeContent content) {
 
-		// Set up a connection to the SP.
-		ClientExchange serviceProviderExchange = getPAOSExchange(endpoint);
-
 		System.out.println("Getting resource: " + endpoint);
 
-		// Send GET request
-		serviceProviderExchange = exchangeContent(httpClient,
-				serviceProviderExchange);
+		// Send GET request, and again as long as the retry policy allows.
+		ClientExchange serviceProviderExchange = getOnce(endpoint, content);
+
+		for (int retries = 0;; retries++) {
+			long delay = retryDelay(serviceProviderExchange,
+					failureOf(serviceProviderExchange), content, retries);
+
+			if (delay < 0 || !pause(delay))
+				break;
+
+			logger.info("Retrying " + endpoint + " after " + delay + " ms.");
+			serviceProviderExchange = getOnce(endpoint, content);
+		}
 
-		if (serviceProviderExchange != null) {
+		if (serviceProviderExchange.getStatus() == ClientExchange.STATUS_COMPLETED) {
 			// Store response (SOAP Envelope with an AuthnRequest)
 			content = storeResponse(serviceProviderExchange, content);
 		}
@@ -82,6 +134,126 @@ public class PaosClient {
 		return content;
 	}
 
+	/**
+	 * Send one GET exchange and wait for it.
+	 */
+	private ClientExchange getOnce(URL endpoint, ExchangeContent content) {
+
+		// Set up a connection to the SP.
+		ClientExchange serviceProviderExchange = getPAOSExchange(endpoint);
+		applyDeadline(serviceProviderExchange, content);
+
+		exchangeContent(httpClient, serviceProviderExchange);
+		return serviceProviderExchange;
+	}
+
+	/**
+	 * Send a GET request to the specified URL without waiting for the
+	 * response. The returned future is completed with the same content as
+	 * sendHttpGETRequest() returns, or fails if no response was received.
+	 * 
+	 * @param endpoint
+	 * @param content
+	 * @return
+	 */
+	public ExchangeFuture sendHttpGETRequestAsync(URL endpoint,
+			ExchangeContent content) {
+
+		logger.debug("Getting resource: " + endpoint);
+
+		ExchangeFuture future = new ExchangeFuture();
+
+		getAsync(endpoint, content, 0, future);
+		return future;
+	}
+
+	/**
+	 * Send a GET exchange and complete the future with the response. A failed
+	 * exchange is sent again later, if the retry policy allows it.
+	 */
+	private void getAsync(final URL endpoint, final ExchangeContent content,
+			final int retries, final ExchangeFuture future) {
+
+		ClientExchange serviceProviderExchange = getPAOSExchange(endpoint);
+		applyDeadline(serviceProviderExchange, content);
+
+		serviceProviderExchange.setCallback(new ClientExchange.Callback() {
+			public void onDone(ClientExchange exchange, Throwable failure) {
+				try {
+					long delay = retryDelay(exchange, failure, content, retries);
+
+					if (delay >= 0) {
+						logger.info("Retrying " + endpoint + " after " + delay
+								+ " ms.");
+						retryLater(delay, future, new Runnable() {
+							public void run() {
+								getAsync(endpoint, content, retries + 1, future);
+							}
+						});
+					} else if (failure != null)
+						future.fail(failure);
+					else
+						future.complete(storeResponse(exchange, content));
+				} catch (RuntimeException e) {
+					future.fail(e);
+				}
+			}
+		});
+
+		dispatch(httpClient, serviceProviderExchange, future);
+	}
+
+	/**
+	 * Open a connection to an endpoint without waiting for it, and without
+	 * sending a request. A connection to the endpoint is reserved from the
+	 * HttpClient on a pooled thread and given straight back as idle, so
+	 * that the exchanges that follow find it connected. The returned future
+	 * is completed with null when the connection is open.
+	 * 
+	 * @param endpoint
+	 * @return
+	 */
+	public ExchangeFuture preconnect(URL endpoint) {
+
+		final Address address = new Address(endpoint.getHost(),
+				endpoint.getPort() == -1 ? endpoint.getDefaultPort() : endpoint
+						.getPort());
+		final ExchangeFuture future = new ExchangeFuture();
+
+		// Reserving a connection blocks until it is open.
+		boolean dispatched = httpClient.getThreadPool().dispatch(
+				new Runnable() {
+					public void run() {
+						try {
+							long timeout = httpClient.getConnectTimeout() > 0 ? httpClient
+									.getConnectTimeout()
+									: ClientConfiguration.httpConnectTimeout;
+							HttpDestination destination = httpClient
+									.getDestination(address, true);
+							AbstractHttpConnection connection = destination
+									.reserveConnection(timeout);
+
+							if (connection == null) {
+								future.fail(new SocketTimeoutException(
+										"No connection to " + address));
+								return;
+							}
+							destination.returnConnection(connection, false);
+							future.complete(null);
+						} catch (IOException e) {
+							future.fail(e);
+						} catch (RuntimeException e) {
+							future.fail(e);
+						}
+					}
+				});
+
+		if (!dispatched)
+			future.fail(new RejectedExecutionException(
+					"No thread to connect to " + address));
+		return future;
+	}
+
 	/**
 	 * Send a SOAP envelope to an endpoint. The response will be either a SOAP
 	 * envelope or any other kind of response.
@@ -90,7 +262,8 @@ public class PaosClient {
 	 * object.
 	 * 
 	 * Any single cookie that is sent along with a Response will also be stored
-	 * in the ExchangeContent object.
+	 * in the ExchangeContent object. All cookies are stored in the cookie
+	 * store, if the client has one.
 	 * 
 	 * The content object is returned, possibly unchanged, but only if no
 	 * response at all was received.
@@ -101,54 +274,212 @@ public class PaosClient {
 	 */
 	public ExchangeContent send(URL endpoint, ExchangeContent content) {
 
+		// Send exchange, and again as long as the retry policy allows.
+		ClientExchange clientExchange = sendOnce(endpoint, content);
+
+		for (int retries = 0;; retries++) {
+			long delay = retryDelay(clientExchange,
+					failureOf(clientExchange), content, retries);
+
+			if (delay < 0 || !pause(delay))
+				break;
+
+			logger.info("Retrying " + endpoint + " after " + delay + " ms.");
+			clientExchange = sendOnce(endpoint, content);
+		}
+
+		if (clientExchange.getStatus() == ClientExchange.STATUS_COMPLETED) {
+			content = processSendResponse(clientExchange, content);
+		} else {
+			logger.info("Could not send envelope.");
+		}
+		return content;
+	}
+
+	/**
+	 * Send one POST exchange and wait for it. A challenge for credentials is
+	 * answered once, by sending the envelope again.
+	 * 
+	 * @return The last exchange that was sent.
+	 */
+	private ClientExchange sendOnce(URL endpoint, ExchangeContent content) {
+
+		// Create a new POST exchange with the request envelope, and the
+		// credentials if they are sent preemptively or were asked for before.
+		Realm preemptive = knownRealm(content);
+		ClientExchange clientExchange = prepareSend(endpoint, content,
+				preemptive);
+
+		// exchangeContent() will return null when something fails.
+		if (exchangeContent(httpClient, clientExchange) == null
+				|| preemptive != null)
+			return clientExchange;
+
+		// If the endpoint asked for credentials, send the envelope again
+		// with the credentials of this content.
+		Realm realm = challengedRealm(clientExchange,
+				content.getRealmResolver());
+
+		if (realm != null) {
+			challengeRoundTrips.incrementAndGet();
+			content.setChallengedRealm(realm);
+			storeCookies(clientExchange);
+			clientExchange = prepareSend(endpoint, content, realm);
+			exchangeContent(httpClient, clientExchange);
+		}
+		return clientExchange;
+	}
+
+	/**
+	 * Send a SOAP envelope to an endpoint without waiting for the response.
+	 * The returned future is completed with the same content as send()
+	 * returns, or fails if no response was received.
+	 * 
+	 * @param endpoint
+	 * @param content
+	 * @return
+	 */
+	public ExchangeFuture sendAsync(URL endpoint, ExchangeContent content) {
+
+		ExchangeFuture future = new ExchangeFuture();
+
+		sendAsync(endpoint, content, knownRealm(content), 0, future);
+		return future;
+	}
+
+	/**
+	 * Send a POST exchange with the given credentials (or none) and complete
+	 * the future with the response. A challenge for credentials is answered
+	 * once, by sending the envelope again, unless credentials were sent. A
+	 * failed exchange is sent again later, if the retry policy allows it.
+	 * 
+	 * @param endpoint
+	 * @param content
+	 * @param realm
+	 * @param retries
+	 *            How many times the envelope has been retried.
+	 * @param future
+	 */
+	private void sendAsync(final URL endpoint, final ExchangeContent content,
+			final Realm realm, final int retries, final ExchangeFuture future) {
+
+		ClientExchange clientExchange = prepareSend(endpoint, content, realm);
+
+		clientExchange.setCallback(new ClientExchange.Callback() {
+			public void onDone(ClientExchange exchange, Throwable failure) {
+				try {
+					Realm challenged = failure == null && realm == null ? challengedRealm(
+							exchange, content.getRealmResolver()) : null;
+
+					if (challenged != null) {
+						challengeRoundTrips.incrementAndGet();
+						content.setChallengedRealm(challenged);
+						storeCookies(exchange);
+						sendAsync(endpoint, content, challenged, retries,
+								future);
+						return;
+					}
+
+					long delay = retryDelay(exchange, failure, content, retries);
+
+					if (delay >= 0) {
+						logger.info("Retrying " + endpoint + " after " + delay
+								+ " ms.");
+						retryLater(delay, future, new Runnable() {
+							public void run() {
+								sendAsync(endpoint, content,
+										knownRealm(content), retries + 1,
+										future);
+							}
+						});
+					} else if (failure != null) {
+						logger.info("Could not send envelope.");
+						future.fail(failure);
+					} else
+						future.complete(processSendResponse(exchange, content));
+				} catch (RuntimeException e) {
+					future.fail(e);
+				}
+			}
+		});
+
+		dispatch(httpClient, clientExchange, future);
+	}
+
+	/**
+	 * Create a POST exchange with the request envelope and cookie of the
+	 * content. The credentials of the realm are added to the exchange itself,
+	 * if a realm is given, so the shared HttpClient is never changed.
+	 * 
+	 * @param endpoint
+	 * @param content
+	 * @param realm
+	 *            Realm with the credentials, or null.
+	 * @return
+	 */
+	private ClientExchange prepareSend(URL endpoint, ExchangeContent content,
+			Realm realm) {
+
 		// Create a new POST exchange.
 		ClientExchange clientExchange = getPOSTExchange(endpoint);
 		
 		// BRL 2013 -- needs to be the PAOS type
 		clientExchange.addRequestHeader("Content-Type", "application/vnd.paos+xml");
 
-		// Write the Envelope to a ByteArrayOutputStream
-		ByteArrayOutputStream stream = MessageParser.envelopeToStream(content
-				.getRequestEnvelope());
+		// Use the serialized envelope if there is one, otherwise serialize
+		// the Envelope straight into a Buffer.
+		Buffer requestContent = null;
+
+		if (content.getRequestBytes() != null) {
+			requestContent = new ByteArrayBuffer(content.getRequestBytes());
+		} else {
+			requestContent = MessageParser.envelopeToBuffer(content
+					.getRequestEnvelope());
+		}
 
 		// Add content to the Exchange
-		clientExchange.setRequestContent(new ByteArrayBuffer(stream
-				.toByteArray()));
+		clientExchange.setRequestContent(requestContent);
 
-		logger.info("\nSent to " + clientExchange.getAddress().getHost()
-				+ clientExchange.getRequestURI() + "\n" + stream.toString());
+		if (logger.isInfoEnabled()) {
+			logger.info("\nSent to " + clientExchange.getAddress().getHost()
+					+ clientExchange.getRequestURI() + "\n"
+					+ requestContent.toString("UTF-8"));
+		}
 
-		// Add the cookie to the Exchange (if there is one)
-		// VERY SP SPECIFIC CODE. CAN FAIL.
-		if (!content.getCookieField().equals(""))
-			clientExchange.setRequestHeader(HttpHeaders.COOKIE,
-					content.getCookieField() + ";");
+		// Add the cookies to the Exchange (if there are any)
+		addCookies(clientExchange, content);
 
-		// Set realmResolver if there is one to set.
-		if (content.getRealmResolver() != null)
-			httpClient.setRealmResolver(content.getRealmResolver());
+		// Add the credentials to this exchange only.
+		setCredentials(clientExchange, realm);
 
-		// Send exchange
-		clientExchange = exchangeContent(httpClient, clientExchange);
+		// Expire at the deadline of the content, also when resent.
+		applyDeadline(clientExchange, content);
 
-		// exchangeContent() will return null when something fails.
-		if (clientExchange != null) {
+		return clientExchange;
+	}
+
+	/**
+	 * Store the response to a sent envelope in the content.
+	 * 
+	 * @param clientExchange
+	 * @param content
+	 * @return
+	 */
+	private ExchangeContent processSendResponse(ClientExchange clientExchange,
+			ExchangeContent content) {
 
-			// Inspect and store the response message. Could be *anything*.
-			content = storeResponse(clientExchange, content);
+		// Inspect and store the response message. Could be *anything*.
+		content = storeResponse(clientExchange, content);
 
-			// If the response was not an envelope.
-			if (content.getResponseParts() != null) {
-				// Check if the IdP sent a SOAP fault message
-				if (containsSoapFault(content.getResponseParts().getBody())) {
-					logger.info("Received a SOAP fault from the IdP.");
-				}
+		// If the response was an envelope.
+		if (content.getResponseHeaderInfo() != null) {
+			// Check if the IdP sent a SOAP fault message, without
+			// unmarshalling the Body.
+			if (content.getResponseHeaderInfo().isFault()) {
+				logger.info("Received a SOAP fault from the IdP.");
 			}
-			// Check if anything could be stored. React.
-
-		} else {
-			logger.info("Could not send envelope.");
 		}
+		// Check if anything could be stored. React.
 		return content;
 	}
 
@@ -170,6 +501,10 @@ public class PaosClient {
 		String cookieField = "";
 		byte[] responseBytes = null; //
 
+		// Keep every cookie the endpoint set, whatever the status.
+		storeCookies(clientExchange);
+		content.setResponseStatus(clientExchange.getResponseStatus());
+
 		// response = clientExchange.getResponseContent();
 		// byte[] = any other response object
 		responseBytes = clientExchange.getResponseContentBytes();
@@ -179,22 +514,32 @@ public class PaosClient {
 		if (clientExchange.getResponseStatus() == 200 || clientExchange.getResponseStatus() == 302) {
 			// If the response contains an envelope...
 
-			logger.info("\nReceived from "
-					+ clientExchange.getAddress().getHost() + ":\n"
-					+ new String(responseBytes));
+			if (logger.isInfoEnabled()) {
+				logger.info("\nReceived from "
+						+ clientExchange.getAddress().getHost() + ":\n"
+						+ new String(responseBytes));
+			}
 			
 			
-			if (isEnvelope(responseBytes)) {
-				// Extract + save an Envelope as EnvelopeParts from the
-				// response.
-				content.setResponseParts(MessageParser
-						.parseMessage(responseBytes));
+			// Read the header values that the ECP flow needs in one
+			// streaming pass, but only if the response is a valid
+			// envelope. Null means that the response was not an envelope.
+			EcpHeaderInfo responseHeaderInfo = null;
+
+			if (isEnvelope(responseBytes))
+				responseHeaderInfo = EcpHeaderInfo.parse(responseBytes);
+
+			if (responseHeaderInfo != null) {
+				// The Body is forwarded as bytes. The envelope is parsed
+				// into EnvelopeParts only if the parts are asked for.
+				content.setResponseHeaderInfo(responseHeaderInfo);
 
 			} else {
 				logger.debug("No SOAP Envelope received as response.");
 				
 				// Make sure the responseparts are empty.
 				content.setResponseParts(null);
+				content.setResponseHeaderInfo(null);
 				
 				// This is where the resource will be stored. Or anything
 				// else that is received, that is not a SOAP Envelope.
@@ -294,6 +639,9 @@ public class PaosClient {
 		exchange.setRequestHeader(PAOS_header, supportsPaosV_1_1 + "; "
 				+ supportsService);
 
+		// Send the session cookies (if there are any)
+		addCookies(exchange, null);
+
 		return exchange;
 	}
 
@@ -313,12 +661,25 @@ public class PaosClient {
 	protected ClientExchange exchangeContent(HttpClient httpClient,
 			ClientExchange clientExchange) {
 
+		// Wait for a permit to send to the origin, or give up.
+		Bulkhead bulkhead = bulkhead(clientExchange);
+
+		if (!bulkhead.acquire(queueTimeout(clientExchange))) {
+			logger.info("Too many requests to " + bulkhead.getOrigin()
+					+ ", not sending.");
+			clientExchange.reject(new RejectedExecutionException(
+					"Too many requests to " + bulkhead.getOrigin()));
+			return null;
+		}
+		clientExchange.setPermit(bulkhead);
+
 		// Send clientExchange
 		try {
 			httpClient.send(clientExchange);
 		} catch (IOException e) {
 			logger.debug("Could not send message to "
 					+ clientExchange.getAddress().getHost());
+			clientExchange.releasePermit();
 		}
 
 		// Wait until something is received.
@@ -340,18 +701,413 @@ public class PaosClient {
 	}
 
 	/**
-	 * Check if the message contains a SOAP envelope.
+	 * Return why an exchange failed, or null if it received a response that
+	 * is not a temporary server error.
+	 * 
+	 * @param clientExchange
+	 *            A finished exchange.
+	 * @param failure
+	 *            The failure that ended the exchange, or null if a response
+	 *            was received.
+	 * @return
+	 */
+	protected RetryPolicy.Cause failureCause(ClientExchange clientExchange,
+			Throwable failure) {
+
+		if (clientExchange.isConnectionFailed())
+			return RetryPolicy.Cause.CONNECTION_FAILED;
+
+		if (failure instanceof RejectedExecutionException)
+			return RetryPolicy.Cause.REJECTED;
+
+		if (failure == null) {
+			int status = clientExchange.getResponseStatus();
+			if (status == HttpStatus.BAD_GATEWAY_502
+					|| status == HttpStatus.SERVICE_UNAVAILABLE_503
+					|| status == HttpStatus.GATEWAY_TIMEOUT_504)
+				return RetryPolicy.Cause.SERVER_UNAVAILABLE;
+			return null;
+		}
+
+		if (failure instanceof SocketTimeoutException)
+			return RetryPolicy.Cause.EXPIRED;
+
+		return RetryPolicy.Cause.EXCEPTED;
+	}
+
+	/**
+	 * Return the failure of an exchange that has been waited for, or null if
+	 * it received a response.
+	 */
+	private Throwable failureOf(ClientExchange clientExchange) {
+
+		int state = clientExchange.getStatus();
+
+		if (state == ClientExchange.STATUS_COMPLETED)
+			return null;
+		if (clientExchange.getFailure() != null)
+			return clientExchange.getFailure();
+		if (state == ClientExchange.STATUS_EXPIRED)
+			return new SocketTimeoutException("Exchange expired");
+		return new IOException("Exchange was not completed");
+	}
+
+	/**
+	 * Count the failure of an exchange, if it failed, and return how long to
+	 * wait before it is retried, or -1 if it is not retried. The cause of the
+	 * failure is kept in the content.
+	 */
+	private long retryDelay(ClientExchange clientExchange, Throwable failure,
+			ExchangeContent content, int retries) {
+
+		RetryPolicy.Cause cause = failureCause(clientExchange, failure);
+		content.setFailureCause(cause);
+
+		RetryPolicy retryPolicy = content.getRetryPolicy();
+
+		if (cause == null || retryPolicy == null)
+			return -1;
+
+		retryPolicy.failed(cause);
+		return retryPolicy.retryDelay(cause, retries, content.isReplayable(),
+				content.getDeadline());
+	}
+
+	/**
+	 * Wait before a retry. Returns false if the thread was interrupted.
+	 */
+	private boolean pause(long delay) {
+		try {
+			Thread.sleep(delay);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Run a retry after a delay, on the timer of the HttpClient, without
+	 * holding a thread while waiting.
+	 * 
+	 * @param delay
+	 * @param future
+	 *            Failed if the retry throws.
+	 * @param retry
+	 */
+	public void retryLater(long delay, final ExchangeFuture future,
+			final Runnable retry) {
+
+		Timeout.Task task = new Timeout.Task() {
+			@Override
+			public void expired() {
+				try {
+					retry.run();
+				} catch (RuntimeException e) {
+					future.fail(e);
+				}
+			}
+		};
+		httpClient.schedule(task, delay);
+	}
+
+	/**
+	 * Make the exchange expire at the deadline of the content, instead of
+	 * after the timeout of the HttpClient. An exchange whose deadline has
+	 * passed expires at once.
+	 * 
+	 * @param clientExchange
+	 * @param content
+	 *            Can be null.
+	 */
+	protected void applyDeadline(ClientExchange clientExchange,
+			ExchangeContent content) {
+
+		if (content == null || content.getDeadline() <= 0)
+			return;
+
+		clientExchange.setTimeout(Math.max(1, content.getDeadline()
+				- System.currentTimeMillis()));
+	}
+
+	/**
+	 * Add the Cookie header to an exchange. With a cookie store, the stored
+	 * cookies that match the request are sent. Without one, the single
+	 * cookie field of the content is sent, if there is one.
+	 * 
+	 * @param clientExchange
+	 * @param content
+	 *            Can be null.
+	 */
+	protected void addCookies(ClientExchange clientExchange,
+			ExchangeContent content) {
+
+		String cookies = null;
+
+		if (cookieStore != null) {
+			// The exchanges are always sent over HTTPS.
+			cookies = cookieStore.getCookieHeader(clientExchange.getAddress()
+					.getHost(), clientExchange.getRequestURI(), true);
+		} else if (content != null && !content.getCookieField().equals("")) {
+			// VERY SP SPECIFIC CODE. CAN FAIL.
+			cookies = content.getCookieField() + ";";
+		}
+
+		if (cookies != null)
+			clientExchange.setRequestHeader(HttpHeaders.COOKIE, cookies);
+	}
+
+	/**
+	 * Store the cookies of a response in the cookie store, if there is one.
+	 * 
+	 * @param clientExchange
+	 */
+	protected void storeCookies(ClientExchange clientExchange) {
+		if (cookieStore != null)
+			cookieStore.store(clientExchange.getAddress().getHost(),
+					clientExchange.getRequestURI(),
+					clientExchange.getResponseFields());
+	}
+
+	/**
+	 * Return the realm with the credentials to answer an HTTP BASIC challenge
+	 * with, or null if the response was not a BASIC challenge or there are no
+	 * credentials for it.
+	 * 
+	 * The realm is resolved from the content's RealmResolver, per exchange,
+	 * instead of being set on the HttpClient that all logins share.
+	 * 
+	 * @param clientExchange
+	 *            A completed exchange.
+	 * @param realmResolver
+	 *            The credentials of the login, or null.
+	 * @return
+	 */
+	protected Realm challengedRealm(ClientExchange clientExchange,
+			RealmResolver realmResolver) {
+
+		if (realmResolver == null
+				|| clientExchange.getResponseStatus() != HttpStatus.UNAUTHORIZED_401
+				|| clientExchange.getResponseFields() == null)
+			return null;
+
+		String challenge = clientExchange.getResponseFields().getStringField(
+				HttpHeaders.WWW_AUTHENTICATE);
+
+		if (challenge == null
+				|| !challenge.trim().toLowerCase().startsWith("basic")) {
+			logger.debug("Unsupported authentication challenge: " + challenge);
+			return null;
+		}
+
+		try {
+			return realmResolver.getRealm(realmName(challenge), null,
+					clientExchange.getRequestURI());
+		} catch (IOException e) {
+			logger.debug("Could not resolve the realm: " + e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Return the realm with the credentials to send with the first request,
+	 * or null if the content does not use preemptive authentication. The
+	 * realm is resolved without a realm name, since no challenge has been
+	 * received.
+	 * 
+	 * @param content
+	 * @return
+	 */
+	protected Realm preemptiveRealm(ExchangeContent content) {
+
+		if (!content.isPreemptiveAuthentication()
+				|| content.getRealmResolver() == null)
+			return null;
+
+		try {
+			return content.getRealmResolver().getRealm(null, null, null);
+		} catch (IOException e) {
+			logger.debug("Could not resolve the realm: " + e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Return the realm to send with a request before any challenge: the
+	 * realm that answered an earlier challenge for the content, so that a
+	 * retry does not cost another 401, or else the preemptive realm.
+	 * 
+	 * @param content
+	 * @return
+	 */
+	protected Realm knownRealm(ExchangeContent content) {
+
+		if (content.getChallengedRealm() != null)
+			return content.getChallengedRealm();
+		return preemptiveRealm(content);
+	}
+
+	/**
+	 * Add an HTTP BASIC Authorization header with the credentials of the
+	 * realm to the exchange. Does nothing if the realm is null.
+	 * 
+	 * @param clientExchange
+	 * @param realm
+	 */
+	protected void setCredentials(ClientExchange clientExchange, Realm realm) {
+
+		if (realm == null)
+			return;
+
+		try {
+			new BasicAuthentication(realm).setCredentials(clientExchange);
+		} catch (IOException e) {
+			logger.error("Could not set the credentials: " + e.toString());
+		}
+	}
+
+	/**
+	 * Read the realm name from a BASIC challenge, realm="name".
+	 * 
+	 * @param challenge
+	 * @return The realm name, or null.
+	 */
+	private String realmName(String challenge) {
+
+		int start = challenge.indexOf("realm=\"");
+		if (start < 0)
+			return null;
+
+		start += "realm=\"".length();
+		int end = challenge.indexOf('"', start);
+
+		return end < 0 ? null : challenge.substring(start, end);
+	}
+
+	/**
+	 * Send a clientExchange without waiting for it. The callback of the
+	 * exchange completes the future, unless the exchange could not be sent
+	 * at all.
+	 * 
+	 * If the bulkhead of the origin has no free permit, the exchange is
+	 * queued and sent when a permit is released. It is rejected if the queue
+	 * is full, or, by a task on the timer of the HttpClient, if it is still
+	 * queued after the queue timeout.
+	 * 
+	 * @param httpClient
+	 * @param clientExchange
+	 * @param future
+	 */
+	protected void dispatch(HttpClient httpClient,
+			ClientExchange clientExchange, ExchangeFuture future) {
+
+		Bulkhead bulkhead = bulkhead(clientExchange);
+		QueuedSend send = new QueuedSend(httpClient, clientExchange, future,
+				bulkhead);
+
+		if (!bulkhead.offer(send)) {
+			clientExchange.reject(new RejectedExecutionException(
+					"Too many requests to " + bulkhead.getOrigin()));
+			return;
+		}
+
+		// Queued: give up on the exchange if no permit comes in time.
+		if (!send.started)
+			httpClient.schedule(send, queueTimeout(clientExchange));
+	}
+
+	/**
+	 * An exchange that is sent when it gets a bulkhead permit. If it is
+	 * still queued when the timer expires, it is removed from the queue and
+	 * rejected.
+	 */
+	private class QueuedSend extends Timeout.Task implements Runnable {
+
+		private final HttpClient httpClient;
+		private final ClientExchange clientExchange;
+		private final ExchangeFuture future;
+		private final Bulkhead bulkhead;
+
+		private volatile boolean started = false;
+
+		private QueuedSend(HttpClient httpClient,
+				ClientExchange clientExchange, ExchangeFuture future,
+				Bulkhead bulkhead) {
+			this.httpClient = httpClient;
+			this.clientExchange = clientExchange;
+			this.future = future;
+			this.bulkhead = bulkhead;
+		}
+
+		/**
+		 * Send the exchange with the permit.
+		 */
+		public void run() {
+			started = true;
+			cancel();
+			clientExchange.setPermit(bulkhead);
+
+			try {
+				httpClient.send(clientExchange);
+			} catch (IOException e) {
+				logger.debug("Could not send message to "
+						+ clientExchange.getAddress().getHost());
+				clientExchange.releasePermit();
+				future.fail(e);
+			} catch (RuntimeException e) {
+				clientExchange.releasePermit();
+				future.fail(e);
+			}
+		}
+
+		/**
+		 * The queue timeout has passed. Reject the exchange, unless it got
+		 * its permit in the meantime.
+		 */
+		@Override
+		public void expired() {
+			if (bulkhead.remove(this))
+				clientExchange.reject(new RejectedExecutionException(
+						"Waited too long for " + bulkhead.getOrigin()));
+		}
+	}
+
+	/**
+	 * Return the bulkhead of the origin an exchange is sent to.
+	 * 
+	 * @param clientExchange
+	 * @return
+	 */
+	protected Bulkhead bulkhead(ClientExchange clientExchange) {
+		Address address = clientExchange.getAddress();
+		return Bulkhead.forOrigin(address.getHost(), address.getPort());
+	}
+
+	/**
+	 * How long an exchange may wait for a bulkhead permit: the queue timeout,
+	 * or the timeout of the exchange if it is shorter.
+	 */
+	private long queueTimeout(ClientExchange clientExchange) {
+		long timeout = ClientConfiguration.bulkheadQueueTimeout;
+		if (clientExchange.getTimeout() > 0
+				&& clientExchange.getTimeout() < timeout)
+			timeout = clientExchange.getTimeout();
+		return timeout;
+	}
+
+	/**
+	 * Check if the message is a valid SOAP envelope. Only the first start
+	 * element is read of any other content, which is rejected without
+	 * validation. An envelope is validated against the schema in one SAX
+	 * pass, without building a DOM.
 	 * 
 	 * @param responseMessage
 	 * @return
 	 */
 	private boolean isEnvelope(byte[] responseMessage) {
-
-		if (responseMessage != null)
-			if (ValidateXML.isValidEnvelope(new ByteArrayInputStream(
-					responseMessage)))
-				return true;
-		return false;
+		return EnvelopeSniffer.isEnvelope(responseMessage)
+				&& ValidateXML.isValidEnvelope(new ByteArrayInputStream(
+						responseMessage));
 	}
 
 	/**
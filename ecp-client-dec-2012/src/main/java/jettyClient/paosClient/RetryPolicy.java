@@ -0,0 +1,220 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.paosClient;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jettyClient.simpleClient.ClientConfiguration;
+
+/**
+ * RetryPolicy decides if and when a failed exchange is sent again.
+ *
+ * The delay before a retry grows exponentially with the number of retries,
+ * and a random part of it is used (full jitter), so that clients that
+ * failed at the same time do not retry at the same time.
+ *
+ * Retries are also limited by a budget: no more than a number of retries
+ * per time window, for all exchanges that use the policy. When an endpoint
+ * is down, the retries can then not multiply the load on it.
+ *
+ * A request that is not replayable, such as an assertion that the SP may
+ * already have consumed, is only sent again if the connection failed, and
+ * the request can not have reached the endpoint. A request that a Bulkhead
+ * rejected is never sent again, since that would only add to the load.
+ *
+ * The policy counts the failures per cause.
+ *
+ * @author carolina
+ *
+ */
+public class RetryPolicy {
+
+	/**
+	 * Why an exchange failed.
+	 */
+	public enum Cause {
+		/* No connection, the request was not sent */
+		CONNECTION_FAILED,
+		/* No response before the timeout */
+		EXPIRED,
+		/* The connection broke */
+		EXCEPTED,
+		/* 502, 503 or 504 from the endpoint */
+		SERVER_UNAVAILABLE,
+		/* Not sent, too many requests to the endpoint (Bulkhead) */
+		REJECTED
+	}
+
+	private static final RetryPolicy shared = new RetryPolicy(
+			ClientConfiguration.retryMax, ClientConfiguration.retryBaseDelay,
+			ClientConfiguration.retryMaxDelay, ClientConfiguration.retryBudget,
+			ClientConfiguration.retryBudgetWindow);
+
+	private static final Random random = new Random();
+
+	private final int maxRetries;
+	private final long baseDelay;
+	private final long maxDelay;
+	private final int budget;
+	private final long budgetWindow;
+
+	/* Guarded by this */
+	private long windowStart = 0;
+	private int windowRetries = 0;
+
+	private final AtomicLong[] failures = new AtomicLong[Cause.values().length];
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong denied = new AtomicLong();
+
+	/**
+	 * @param maxRetries
+	 *            How many times an exchange is retried.
+	 * @param baseDelay
+	 *            The longest delay before the first retry, in milliseconds.
+	 * @param maxDelay
+	 *            The longest delay before any retry, in milliseconds.
+	 * @param budget
+	 *            How many retries are allowed per window.
+	 * @param budgetWindow
+	 *            The window, in milliseconds.
+	 */
+	public RetryPolicy(int maxRetries, long baseDelay, long maxDelay,
+			int budget, long budgetWindow) {
+		this.maxRetries = maxRetries;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+		this.budget = budget;
+		this.budgetWindow = budgetWindow;
+
+		for (int i = 0; i < failures.length; i++)
+			failures[i] = new AtomicLong();
+	}
+
+	/**
+	 * The policy that the exchanges of all logins use by default.
+	 *
+	 * @return
+	 */
+	public static RetryPolicy getShared() {
+		return shared;
+	}
+
+	/**
+	 * Count a failure.
+	 *
+	 * @param cause
+	 */
+	public void failed(Cause cause) {
+		failures[cause.ordinal()].incrementAndGet();
+	}
+
+	/**
+	 * Return how long to wait before the request is sent again, in
+	 * milliseconds, or -1 if it is not sent again. A retry that is allowed
+	 * is taken from the budget.
+	 *
+	 * @param cause
+	 *            Why the last attempt failed.
+	 * @param retries
+	 *            How many times the request has been retried.
+	 * @param replayable
+	 *            False if the request must not reach the endpoint twice.
+	 * @param deadline
+	 *            The time the exchange must be done by, or 0.
+	 * @return
+	 */
+	public long retryDelay(Cause cause, int retries, boolean replayable,
+			long deadline) {
+
+		if (retries >= maxRetries || cause == Cause.REJECTED)
+			return -1;
+
+		if (!replayable && cause != Cause.CONNECTION_FAILED)
+			return -1;
+
+		long delay = jitter(retries);
+
+		// No point in waiting past the deadline.
+		if (deadline > 0 && System.currentTimeMillis() + delay >= deadline)
+			return -1;
+
+		if (!takeFromBudget()) {
+			denied.incrementAndGet();
+			return -1;
+		}
+
+		this.retries.incrementAndGet();
+		return delay;
+	}
+
+	/**
+	 * Return how many failures of a cause have been counted.
+	 *
+	 * @param cause
+	 * @return
+	 */
+	public long getFailures(Cause cause) {
+		return failures[cause.ordinal()].get();
+	}
+
+	/**
+	 * Return how many retries have been allowed.
+	 *
+	 * @return
+	 */
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * Return how many retries were refused because the budget was used up.
+	 *
+	 * @return
+	 */
+	public long getDenied() {
+		return denied.get();
+	}
+
+	/**
+	 * A random delay between 0 and baseDelay * 2^retries, at most maxDelay.
+	 */
+	private long jitter(int retries) {
+		long ceiling = baseDelay << Math.min(retries, 30);
+		if (ceiling <= 0 || ceiling > maxDelay)
+			ceiling = maxDelay;
+		if (ceiling <= 0)
+			return 0;
+		return (long) (random.nextDouble() * ceiling);
+	}
+
+	private synchronized boolean takeFromBudget() {
+
+		long now = System.currentTimeMillis();
+
+		if (now - windowStart >= budgetWindow) {
+			windowStart = now;
+			windowRetries = 0;
+		}
+
+		if (windowRetries >= budget)
+			return false;
+
+		windowRetries++;
+		return true;
+	}
+}
@@ -0,0 +1,105 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.parser;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import jettyClient.simpleClient.ClientConfiguration;
+
+import org.joda.time.DateTime;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.Conditions;
+import org.opensaml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml2.core.SubjectConfirmationData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * AssertionValidity reads how long the assertions in an IdP response are
+ * valid, without unmarshalling the response.
+ *
+ * The validity ends at the earliest NotOnOrAfter of the Conditions and the
+ * SubjectConfirmationData of all assertions. If an assertion is encrypted
+ * its validity can not be read, and the response is treated as having none.
+ *
+ * @author carolina
+ *
+ */
+public class AssertionValidity {
+
+	// Get the client logger
+	private final static Logger logger = LoggerFactory
+			.getLogger(ClientConfiguration.logger);
+
+	/**
+	 * Return the time the assertions of a message stop being valid, in
+	 * milliseconds, or -1 if it can not be read.
+	 *
+	 * @param message
+	 *            The IdP response envelope.
+	 * @return
+	 */
+	public static long notOnOrAfter(byte[] message) {
+
+		if (message == null)
+			return -1;
+
+		long earliest = -1;
+		XMLStreamReader reader = null;
+
+		try {
+			reader = EnvelopeSniffer.createReader(message);
+
+			while (reader.hasNext()) {
+				if (reader.next() != XMLStreamConstants.START_ELEMENT
+						|| !SAMLConstants.SAML20_NS.equals(reader
+								.getNamespaceURI()))
+					continue;
+
+				String name = reader.getLocalName();
+
+				if (EncryptedAssertion.DEFAULT_ELEMENT_LOCAL_NAME.equals(name))
+					return -1;
+
+				if (!Conditions.DEFAULT_ELEMENT_LOCAL_NAME.equals(name)
+						&& !SubjectConfirmationData.DEFAULT_ELEMENT_LOCAL_NAME
+								.equals(name))
+					continue;
+
+				String value = reader.getAttributeValue(null,
+						Conditions.NOT_ON_OR_AFTER_ATTRIB_NAME);
+				if (value == null)
+					continue;
+
+				long time = new DateTime(value.trim()).getMillis();
+				if (earliest == -1 || time < earliest)
+					earliest = time;
+			}
+		} catch (XMLStreamException e) {
+			logger.debug("Could not read the assertion validity.");
+			return -1;
+		} catch (IllegalArgumentException e) {
+			logger.debug("Invalid NotOnOrAfter: " + e.getMessage());
+			return -1;
+		} finally {
+			EnvelopeSniffer.close(reader);
+		}
+		return earliest;
+	}
+}
@@ -0,0 +1,504 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.parser;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import jettyClient.simpleClient.ClientConfiguration;
+
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.IDPEntry;
+import org.opensaml.ws.soap.soap11.Body;
+import org.opensaml.ws.soap.soap11.Envelope;
+import org.opensaml.ws.soap.soap11.Fault;
+import org.opensaml.ws.soap.soap11.Header;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * EcpHeaderInfo holds the few values of an ECP SOAP Envelope that the client
+ * needs, read in one forward pass with StAX instead of unmarshalling the
+ * Header and Body:
+ *
+ * - PAOS Request responseConsumerURL and messageID (from the SP)
+ * - ECP Request IDPList entries (from the SP)
+ * - ECP Response AssertionConsumerServiceURL (from the IdP)
+ *
+ * The Body is not parsed. Its position in the original message is kept, so
+ * that it can be forwarded as raw bytes.
+ *
+ * @author carolina
+ *
+ */
+public class EcpHeaderInfo {
+
+	// Get the client logger
+	private final static Logger logger = LoggerFactory
+			.getLogger(ClientConfiguration.logger);
+
+	private static final String SOAP11_NS = Envelope.DEFAULT_ELEMENT_NAME
+			.getNamespaceURI();
+
+	/* The message the information was read from. */
+	private final byte[] message;
+
+	/* The encoding of the message, declared or detected. */
+	private String encoding = null;
+
+	/* PAOS Request header block */
+	private String responseConsumerURL = null;
+	private String messageID = null;
+
+	/* ECP Request header block */
+	private List<IDPEntry> idpEntries = new ArrayList<IDPEntry>();
+
+	/* ECP Response header block */
+	private String assertionConsumerServiceURL = null;
+
+	/* Namespaces declared on the Envelope element, prefix -> URI */
+	private Map<String, String> envelopeNamespaces = new LinkedHashMap<String, String>();
+
+	/* Body */
+	private String bodyPrefix = null;
+	private boolean fault = false;
+	private int bodyOffset = -1;
+	private int bodyLength = -1;
+
+	private EcpHeaderInfo(byte[] message) {
+		this.message = message;
+	}
+
+	/**
+	 * Read the ECP header information from a SOAP Envelope message.
+	 *
+	 * Returns null if the message is not a SOAP Envelope or could not be
+	 * read.
+	 *
+	 * @param message
+	 * @return EcpHeaderInfo or null.
+	 */
+	public static EcpHeaderInfo parse(byte[] message) {
+
+		if (message == null)
+			return null;
+
+		EcpHeaderInfo info = new EcpHeaderInfo(message);
+		XMLStreamReader reader = null;
+
+		try {
+			reader = EnvelopeSniffer.createReader(message);
+			if (!info.read(reader))
+				return null;
+		} catch (XMLStreamException e) {
+			logger.debug("Could not read the envelope header.");
+			return null;
+		} finally {
+			EnvelopeSniffer.close(reader);
+		}
+
+		info.locateBody();
+		return info;
+	}
+
+	/**
+	 * Walk the whole Envelope, to the end of the document, so that a message
+	 * that is not well-formed after the Body is not accepted.
+	 *
+	 * @param reader
+	 * @return false if the root element is not an Envelope.
+	 * @throws XMLStreamException
+	 */
+	private boolean read(XMLStreamReader reader) throws XMLStreamException {
+
+		int depth = 0;
+		boolean inHeader = false;
+		boolean inBody = false;
+		boolean inEcpRequest = false;
+		boolean bodyChildSeen = false;
+
+		// The encoding of the XML declaration, or the one the reader
+		// detected. Without either, XML defaults to UTF-8.
+		encoding = reader.getCharacterEncodingScheme();
+		if (encoding == null)
+			encoding = reader.getEncoding();
+		if (encoding == null)
+			encoding = "UTF-8";
+
+		while (reader.hasNext()) {
+			int event = reader.next();
+
+			if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+				if (depth == 1) {
+					inHeader = false;
+					inBody = false;
+				} else if (depth == 2)
+					inEcpRequest = false;
+				continue;
+			}
+
+			if (event != XMLStreamConstants.START_ELEMENT)
+				continue;
+
+			depth++;
+			String ns = reader.getNamespaceURI();
+			String name = reader.getLocalName();
+
+			if (depth == 1) {
+				if (!SOAP11_NS.equals(ns)
+						|| !Envelope.DEFAULT_ELEMENT_LOCAL_NAME.equals(name))
+					return false;
+
+				for (int i = 0; i < reader.getNamespaceCount(); i++) {
+					String prefix = reader.getNamespacePrefix(i);
+					envelopeNamespaces.put(prefix == null ? "" : prefix,
+							reader.getNamespaceURI(i));
+				}
+
+			} else if (depth == 2 && SOAP11_NS.equals(ns)) {
+				if (Header.DEFAULT_ELEMENT_LOCAL_NAME.equals(name)) {
+					inHeader = true;
+				} else if (Body.DEFAULT_ELEMENT_LOCAL_NAME.equals(name)) {
+					String prefix = reader.getPrefix();
+					bodyPrefix = prefix == null ? "" : prefix;
+					inBody = true;
+				}
+
+			} else if (depth == 3 && inHeader) {
+				readHeaderBlock(reader, ns, name);
+				inEcpRequest = SAMLConstants.SAML20ECP_NS.equals(ns)
+						&& org.opensaml.saml2.ecp.Request.DEFAULT_ELEMENT_LOCAL_NAME
+								.equals(name);
+
+			} else if (depth == 5 && inEcpRequest
+					&& IDPEntry.DEFAULT_ELEMENT_LOCAL_NAME.equals(name)) {
+				// ecp:Request/samlp:IDPList/samlp:IDPEntry
+				IDPEntry entry = (IDPEntry) ParseHelper
+						.buildObject(IDPEntry.DEFAULT_ELEMENT_NAME);
+				entry.setProviderID(reader.getAttributeValue(null,
+						IDPEntry.PROVIDER_ID_ATTRIB_NAME));
+				entry.setName(reader.getAttributeValue(null,
+						IDPEntry.NAME_ATTRIB_NAME));
+				entry.setLoc(reader.getAttributeValue(null,
+						IDPEntry.LOC_ATTRIB_NAME));
+				idpEntries.add(entry);
+
+			} else if (depth == 3 && inBody && !bodyChildSeen) {
+				// The Body content is not needed, only whether it is a fault.
+				fault = SOAP11_NS.equals(ns)
+						&& Fault.DEFAULT_ELEMENT_LOCAL_NAME.equals(name);
+				bodyChildSeen = true;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Store the values of a PAOS Request or an ECP Response header block.
+	 *
+	 * @param reader
+	 * @param ns
+	 * @param name
+	 */
+	private void readHeaderBlock(XMLStreamReader reader, String ns, String name) {
+
+		if (SAMLConstants.PAOS_NS.equals(ns)
+				&& ecp.liberty.paos.Request.DEFAULT_ELEMENT_LOCAL_NAME
+						.equals(name)) {
+			responseConsumerURL = reader.getAttributeValue(null,
+					ecp.liberty.paos.Request.RESPONSE_CONSUMER_URL_ATTRIB_NAME);
+			messageID = reader.getAttributeValue(null,
+					ecp.liberty.paos.Request.MESSAGE_ID_ATTRIB_NAME);
+		} else if (SAMLConstants.SAML20ECP_NS.equals(ns)
+				&& org.opensaml.saml2.ecp.Response.DEFAULT_ELEMENT_LOCAL_NAME
+						.equals(name)) {
+			assertionConsumerServiceURL = reader
+					.getAttributeValue(
+							null,
+							org.opensaml.saml2.ecp.Response.ASSERTION_CONSUMER_SERVICE_URL_ATTRIB_NAME);
+		}
+	}
+
+	/**
+	 * Find the byte range of the Body element in the message.
+	 *
+	 * The reader reports character offsets, which are not byte offsets and
+	 * are not exact at event boundaries. The range is therefore taken from a
+	 * second pass over the bytes that the reader has already found to be
+	 * well-formed: markup is read tag by tag, comments, CDATA sections and
+	 * processing instructions are skipped, and the Body is the child of the
+	 * Envelope with the name the reader reported.
+	 *
+	 * The range is left unset if the message is not in an ASCII compatible
+	 * encoding or the Body can not be found.
+	 */
+	private void locateBody() {
+
+		if (bodyPrefix == null)
+			return;
+
+		// The Body is copied between UTF-8 tags. In any other encoding its
+		// text would be corrupted, and the tags could not be found as bytes.
+		if (!isUtf8()) {
+			logger.debug("The message is encoded in " + encoding
+					+ ", the Body is not forwarded as bytes.");
+			return;
+		}
+
+		String qName = bodyPrefix.length() == 0 ? Body.DEFAULT_ELEMENT_LOCAL_NAME
+				: bodyPrefix + ":" + Body.DEFAULT_ELEMENT_LOCAL_NAME;
+		byte[] name = ascii(qName);
+
+		int depth = 0;
+		int start = -1;
+		int i = 0;
+
+		while ((i = indexOf(message, (byte) '<', i)) >= 0) {
+
+			if (startsWith(message, i, COMMENT_START)) {
+				i = skipPast(message, COMMENT_END, i + COMMENT_START.length);
+			} else if (startsWith(message, i, CDATA_START)) {
+				i = skipPast(message, CDATA_END, i + CDATA_START.length);
+			} else if (startsWith(message, i, PI_START)) {
+				i = skipPast(message, PI_END, i + PI_START.length);
+			} else if (i + 1 < message.length && message[i + 1] == '!') {
+				// A DOCTYPE. Its internal subset is not read here.
+				logger.debug("The message has a DOCTYPE, the Body is not forwarded as bytes.");
+				return;
+			} else {
+				int end = endOfTag(message, i);
+				if (end < 0)
+					return;
+
+				if (message[i + 1] == '/') {
+					depth--;
+					if (start >= 0 && depth == 1) {
+						setBody(start, end);
+						return;
+					}
+				} else {
+					depth++;
+					boolean empty = message[end - 1] == '/';
+
+					if (depth == 2 && start < 0
+							&& isTagName(message, i + 1, name)) {
+						start = i;
+						if (empty) {
+							// <S:Body/>
+							setBody(start, end);
+							return;
+						}
+					}
+					if (empty)
+						depth--;
+				}
+				i = end + 1;
+			}
+
+			if (i < 0)
+				return;
+		}
+	}
+
+	private void setBody(int start, int end) {
+		bodyOffset = start;
+		bodyLength = end + 1 - start;
+	}
+
+	/* Getters */
+
+	public byte[] getMessage() {
+		return message;
+	}
+
+	public String getResponseConsumerURL() {
+		return responseConsumerURL;
+	}
+
+	public String getMessageID() {
+		return messageID;
+	}
+
+	public List<IDPEntry> getIdpEntries() {
+		return Collections.unmodifiableList(idpEntries);
+	}
+
+	public String getAssertionConsumerServiceURL() {
+		return assertionConsumerServiceURL;
+	}
+
+	/**
+	 * Namespace declarations on the Envelope element, in document order. The
+	 * default namespace has the prefix "".
+	 *
+	 * @return
+	 */
+	public Map<String, String> getEnvelopeNamespaces() {
+		return Collections.unmodifiableMap(envelopeNamespaces);
+	}
+
+	/**
+	 * The prefix of the Body element, "" if it is in the default namespace.
+	 * Null if there was no Body.
+	 * 
+	 * @return
+	 */
+	public String getBodyPrefix() {
+		return bodyPrefix;
+	}
+
+	public boolean isFault() {
+		return fault;
+	}
+
+	/**
+	 * The encoding of the message, from its XML declaration or as detected.
+	 * 
+	 * @return
+	 */
+	public String getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Return true if the message is in UTF-8 or US-ASCII, so that its bytes
+	 * can be copied into a UTF-8 message as they are.
+	 * 
+	 * @return
+	 */
+	public boolean isUtf8() {
+		return encoding != null
+				&& (encoding.equalsIgnoreCase("UTF-8")
+						|| encoding.equalsIgnoreCase("UTF8")
+						|| encoding.equalsIgnoreCase("US-ASCII") || encoding
+							.equalsIgnoreCase("ASCII"));
+	}
+
+	/**
+	 * Return true if the Body was found and can be forwarded as raw bytes.
+	 *
+	 * @return
+	 */
+	public boolean hasBody() {
+		return bodyOffset >= 0;
+	}
+
+	public int getBodyOffset() {
+		return bodyOffset;
+	}
+
+	public int getBodyLength() {
+		return bodyLength;
+	}
+
+	/* Byte helpers */
+
+	private static byte[] ascii(String string) {
+		try {
+			return string.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			// US-ASCII is always supported.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static final byte[] COMMENT_START = ascii("<!--");
+	private static final byte[] COMMENT_END = ascii("-->");
+	private static final byte[] CDATA_START = ascii("<![CDATA[");
+	private static final byte[] CDATA_END = ascii("]]>");
+	private static final byte[] PI_START = ascii("<?");
+	private static final byte[] PI_END = ascii("?>");
+
+	private static boolean startsWith(byte[] bytes, int at, byte[] pattern) {
+		if (at + pattern.length > bytes.length)
+			return false;
+		for (int j = 0; j < pattern.length; j++) {
+			if (bytes[at + j] != pattern[j])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Return true if the tag name at the index is the name, followed by
+	 * whitespace, '>' or '/'.
+	 */
+	private static boolean isTagName(byte[] bytes, int at, byte[] name) {
+		if (!startsWith(bytes, at, name) || at + name.length >= bytes.length)
+			return false;
+
+		byte next = bytes[at + name.length];
+		return next == '>' || next == '/' || next == ' ' || next == '\t'
+				|| next == '\r' || next == '\n';
+	}
+
+	/**
+	 * Find the '>' that ends the tag starting at the index. A '>' within a
+	 * quoted attribute value does not end the tag.
+	 */
+	private static int endOfTag(byte[] bytes, int from) {
+		byte quote = 0;
+		for (int i = from + 1; i < bytes.length; i++) {
+			byte b = bytes[i];
+			if (quote != 0) {
+				if (b == quote)
+					quote = 0;
+			} else if (b == '"' || b == '\'') {
+				quote = b;
+			} else if (b == '>') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the index after the end pattern, or -1 if it is not found.
+	 */
+	private static int skipPast(byte[] bytes, byte[] end, int from) {
+		int i = indexOf(bytes, end, from);
+		return i < 0 ? -1 : i + end.length;
+	}
+
+	private static int indexOf(byte[] bytes, byte b, int from) {
+		for (int i = from; i < bytes.length; i++) {
+			if (bytes[i] == b)
+				return i;
+		}
+		return -1;
+	}
+
+	private static int indexOf(byte[] bytes, byte[] pattern, int from) {
+		outer: for (int i = from; i <= bytes.length - pattern.length; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (bytes[i + j] != pattern[j])
+					continue outer;
+			}
+			return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,185 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.parser;
+
+import java.io.ByteArrayInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import jettyClient.simpleClient.ClientConfiguration;
+
+import org.opensaml.ws.soap.soap11.Envelope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * EnvelopeSniffer decides cheaply whether a message could be a SOAP Envelope,
+ * before any DOM is built or any schema validation is done.
+ *
+ * Only the beginning of the message is looked at: the first non-whitespace
+ * character must start markup, in UTF-8 or UTF-16, and the first start
+ * element read with StAX must be a SOAP 1.1 Envelope. HTML pages, binary resources and other responses are
+ * rejected without reading them further.
+ *
+ * @author carolina
+ *
+ */
+public class EnvelopeSniffer {
+
+	// Get the client logger
+	private final static Logger logger = LoggerFactory
+			.getLogger(ClientConfiguration.logger);
+
+	/* XMLInputFactory is not guaranteed to be thread-safe, one per thread. */
+	private static final ThreadLocal<XMLInputFactory> factories = new ThreadLocal<XMLInputFactory>() {
+		@Override
+		protected XMLInputFactory initialValue() {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE,
+					Boolean.TRUE);
+			// Never load DTDs or entities from a received message.
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			factory.setProperty(
+					XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+					Boolean.FALSE);
+			return factory;
+		}
+	};
+
+	/**
+	 * Return true if the root element of the message is a SOAP 1.1 Envelope.
+	 *
+	 * A true result does not mean that the message is a valid Envelope, only
+	 * that it is worth validating.
+	 *
+	 * @param message
+	 * @return
+	 */
+	public static boolean isEnvelope(byte[] message) {
+
+		if (message == null || !startsWithMarkup(message))
+			return false;
+
+		XMLStreamReader reader = null;
+
+		try {
+			reader = createReader(message);
+
+			// Skip the prolog (declaration, comments, doctype...)
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+					return Envelope.DEFAULT_ELEMENT_NAME.getNamespaceURI()
+							.equals(reader.getNamespaceURI())
+							&& Envelope.DEFAULT_ELEMENT_LOCAL_NAME
+									.equals(reader.getLocalName());
+				}
+			}
+		} catch (XMLStreamException e) {
+			logger.debug("Message does not start with well-formed XML.");
+		} finally {
+			close(reader);
+		}
+		return false;
+	}
+
+	/**
+	 * Create a StAX reader over a message.
+	 *
+	 * @param message
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	static XMLStreamReader createReader(byte[] message)
+			throws XMLStreamException {
+		return factories.get().createXMLStreamReader(
+				new ByteArrayInputStream(message));
+	}
+
+	/**
+	 * Close a StAX reader, ignoring any errors.
+	 *
+	 * @param reader
+	 */
+	static void close(XMLStreamReader reader) {
+		if (reader != null) {
+			try {
+				reader.close();
+			} catch (XMLStreamException e) {
+				// Nothing to do.
+			}
+		}
+	}
+
+	/**
+	 * Check that the first character that is not whitespace or a byte order
+	 * mark is a '<'. Rejects binary content without starting a parser.
+	 *
+	 * UTF-16 is recognised by its byte order mark, or without one by the
+	 * zero byte of its first ASCII character, as in "00 3C" or "3C 00".
+	 *
+	 * @param message
+	 * @return
+	 */
+	private static boolean startsWithMarkup(byte[] message) {
+
+		int i = 0;
+		// Bytes per character, and where in the character the ASCII byte is.
+		int width = 1;
+		int low = 0;
+
+		if (message.length >= 3 && (message[0] & 0xFF) == 0xEF
+				&& (message[1] & 0xFF) == 0xBB && (message[2] & 0xFF) == 0xBF) {
+			// UTF-8 byte order mark
+			i = 3;
+		} else if (message.length >= 2 && (message[0] & 0xFF) == 0xFE
+				&& (message[1] & 0xFF) == 0xFF) {
+			// UTF-16 big endian byte order mark
+			i = 2;
+			width = 2;
+			low = 1;
+		} else if (message.length >= 2 && (message[0] & 0xFF) == 0xFF
+				&& (message[1] & 0xFF) == 0xFE) {
+			// UTF-16 little endian byte order mark
+			i = 2;
+			width = 2;
+		} else if (message.length >= 2 && message[0] == 0 && message[1] != 0) {
+			// UTF-16 big endian
+			width = 2;
+			low = 1;
+		} else if (message.length >= 2 && message[0] != 0 && message[1] == 0) {
+			// UTF-16 little endian
+			width = 2;
+		}
+
+		for (; i + width <= message.length; i += width) {
+			// Whitespace and '<' are ASCII, the other byte of UTF-16 is zero.
+			if (width == 2 && message[i + 1 - low] != 0)
+				return false;
+
+			byte b = message[i + low];
+
+			if (b == ' ' || b == '\t' || b == '\r' || b == '\n')
+				continue;
+
+			return b == '<';
+		}
+		return false;
+	}
+}
@@ -21,13 +21,15 @@ import java.io.ByteArrayOutputStream;
 import jettyClient.EnvelopeHandling.EnvelopeParts;
 import jettyClient.simpleClient.ClientConfiguration;
 
-import org.opensaml.ws.soap.soap11.Body;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.opensaml.ws.soap.soap11.Envelope;
-import org.opensaml.ws.soap.soap11.Header;
 import org.opensaml.xml.Configuration;
 import org.opensaml.xml.io.Marshaller;
 import org.opensaml.xml.io.MarshallingException;
 import org.opensaml.xml.util.XMLHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.ls.DOMImplementationLS;
@@ -35,6 +37,21 @@ import org.w3c.dom.ls.LSOutput;
 
 public class MessageParser {
 
+	// Get the client logger
+	private final static Logger logger = LoggerFactory
+			.getLogger(ClientConfiguration.logger);
+
+	/* Serialization streams are kept per thread up to this size. */
+	private static final int initialStreamSize = 8 * 1024;
+	private static final int maxRetainedStreamSize = 256 * 1024;
+
+	private static final ThreadLocal<ReusableOutputStream> serializationStreams = new ThreadLocal<ReusableOutputStream>() {
+		@Override
+		protected ReusableOutputStream initialValue() {
+			return new ReusableOutputStream(initialStreamSize);
+		}
+	};
+
 	/**
 	 * Turns a SOAP message XML into a SOAP Envelope and splits it into a
 	 * Header, a Body and an empty Envelope. These items are stored in the
@@ -66,6 +83,39 @@ public class MessageParser {
 		return null;
 	}
 
+	/**
+	 * Validates and parses a message in a single pass. The DOM is built by a
+	 * parser that validates against the SOAP Envelope schema, so a message
+	 * that is not a valid SOAP Envelope fails during the parse itself.
+	 * 
+	 * Returns null if the message is not a SOAP Envelope. Otherwise the
+	 * Envelope is returned in parts, exactly as parseMessage() does.
+	 * 
+	 * @param message
+	 * @return A SOAP Envelope in parts, or null if the message was not an
+	 *         Envelope.
+	 */
+	public static EnvelopeParts parseEnvelope(byte[] message) {
+
+		if (message == null)
+			return null;
+
+		String schemaFilePath = ClientConfiguration.soapEnvelopeSchemaLocation;
+
+		// Parsing fails if the message does not validate against the schema.
+		Element element = ParseHelper.extractElement(new ByteArrayInputStream(
+				message), schemaFilePath);
+
+		// The schema also declares Header, Body and Fault as global
+		// elements, so the root itself has to be checked.
+		if (element == null
+				|| !Envelope.DEFAULT_ELEMENT_NAME.equals(ParseHelper
+						.getDefaultElementName(element)))
+			return null;
+
+		return storeEnvelopeParts(element);
+	}
+
 	/**
 	 * Turns a SOAP message XML into a SOAP Envelope.
 	 * 
@@ -96,7 +146,8 @@ public class MessageParser {
 	/**
 	 * Store element (=Envelope) parts in an EnvelopeParts object.
 	 * 
-	 * TODO: if the envelope does not have a header...
+	 * The parts are unmarshalled by EnvelopeParts only when they are asked
+	 * for, and the element is left as it is.
 	 * 
 	 * @param element
 	 *            The Envelope element.
@@ -104,46 +155,39 @@ public class MessageParser {
 	 */
 	private static EnvelopeParts storeEnvelopeParts(Element element) {
 
-		Header header = null;
-		Envelope emptyEnvelope = null;
-		Body body = null;
-
-		// ------------------ Header ----------------- //
+		EnvelopeParts envelopeParts = new EnvelopeParts(element);
 
-		// Get the first child of the element.
-		Element childElement = (Element) element.getFirstChild();
+		if (envelopeParts.getBodyElement() == null)
+			logger.debug("Body was missing.");
 
-		// Check if the first child of the element is a header (it should be).
-		if (ParseHelper.getDefaultElementName(childElement).equals(
-				Header.DEFAULT_ELEMENT_NAME)) {
-			// Store and remove Header.
-			header = (Header) ParseHelper.unmarshall(childElement);
-			element.removeChild(childElement);
-		} else {
-			System.out.println("Header was missing.");
-		}
+		return envelopeParts;
+	}
 
-		// ------------------- Body ------------------ //
+	/**
+	 * Serialize the envelope given as parameter into a Jetty Buffer that can
+	 * be used as request content as it is.
+	 * 
+	 * The envelope is written into a stream that is reused by the current
+	 * thread, and copied once into a Buffer of exactly the right size.
+	 * 
+	 * @param envelope
+	 *            A SOAP Envelope
+	 * @return A Buffer that contains the serialized Envelope.
+	 */
+	public static Buffer envelopeToBuffer(Envelope envelope) {
 
-		// Get the new child element (since Header was removed)
-		childElement = (Element) element.getFirstChild();
+		ReusableOutputStream stream = serializationStreams.get();
 
-		// Check if the second child of the element is a body (it should be).
-		if (ParseHelper.getDefaultElementName(childElement).equals(
-				Body.DEFAULT_ELEMENT_NAME)) {
-			// Store and remove Body.
-			body = (Body) ParseHelper.unmarshall(childElement);
-			element.removeChild(childElement);
-		} else {
-			System.out.println("Body was missing.");
+		try {
+			XMLHelper.writeNode(ParseHelper.marshall(envelope), stream);
+			return stream.toBuffer();
+		} finally {
+			stream.reset();
+
+			// Do not keep an unusually large array for this thread.
+			if (stream.capacity() > maxRetainedStreamSize)
+				serializationStreams.remove();
 		}
-
-		// ----------------- Envelope ---------------- //
-
-		// Store the (filled) envelope.
-		emptyEnvelope = (Envelope) ParseHelper.unmarshall(element);
-
-		return new EnvelopeParts(header, body, emptyEnvelope);
 	}
 
 	/**
@@ -193,4 +237,25 @@ public class MessageParser {
 		return stream;
 	}
 
+	/**
+	 * A ByteArrayOutputStream that gives access to its size and can copy its
+	 * content straight into a Buffer.
+	 */
+	private static class ReusableOutputStream extends ByteArrayOutputStream {
+
+		public ReusableOutputStream(int size) {
+			super(size);
+		}
+
+		public int capacity() {
+			return buf.length;
+		}
+
+		public Buffer toBuffer() {
+			byte[] bytes = new byte[count];
+			System.arraycopy(buf, 0, bytes, 0, count);
+			return new ByteArrayBuffer(bytes);
+		}
+	}
+
 }
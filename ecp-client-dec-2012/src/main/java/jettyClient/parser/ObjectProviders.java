@@ -0,0 +1,164 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.parser;
+
+import javax.xml.namespace.QName;
+
+import jettyClient.simpleClient.ClientConfiguration;
+
+import org.opensaml.saml2.core.IDPEntry;
+import org.opensaml.ws.soap.soap11.Body;
+import org.opensaml.ws.soap.soap11.Envelope;
+import org.opensaml.ws.soap.soap11.Fault;
+import org.opensaml.ws.soap.soap11.Header;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.io.Marshaller;
+import org.opensaml.xml.io.Unmarshaller;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ObjectProviders caches the builder, marshaller and unmarshaller of the
+ * element types the ECP client handles, so that ParseHelper does not look
+ * them up in the OpenSAML factories for every element.
+ *
+ * The element QNames are also used as interned QNames: an element of a known
+ * type gets the same QName instance every time, instead of a new one.
+ *
+ * The cache is filled by load(), after OpenSAML has been bootstrapped and the
+ * PAOS providers have been registered. Until then, and for any other element
+ * type, null is returned and the caller uses the factories.
+ *
+ * @author carolina
+ *
+ */
+public class ObjectProviders {
+
+	// Get the client logger
+	private final static Logger logger = LoggerFactory
+			.getLogger(ClientConfiguration.logger);
+
+	/* The element types the client handles. */
+	private static final QName[] elementNames = new QName[] {
+			Envelope.DEFAULT_ELEMENT_NAME, Header.DEFAULT_ELEMENT_NAME,
+			Body.DEFAULT_ELEMENT_NAME, Fault.DEFAULT_ELEMENT_NAME,
+			ecp.liberty.paos.Request.DEFAULT_ELEMENT_NAME,
+			ecp.liberty.paos.Response.DEFAULT_ELEMENT_NAME,
+			org.opensaml.saml2.ecp.Request.DEFAULT_ELEMENT_NAME,
+			org.opensaml.saml2.ecp.Response.DEFAULT_ELEMENT_NAME,
+			IDPEntry.DEFAULT_ELEMENT_NAME };
+
+	/* Loaded providers, in the same order as elementNames. */
+	private static volatile Provider[] providers = null;
+
+	/**
+	 * Look up and cache the providers of the known element types. Can be
+	 * called again if providers are registered later.
+	 */
+	public static void load() {
+
+		Provider[] loaded = new Provider[elementNames.length];
+
+		for (int i = 0; i < elementNames.length; i++) {
+			QName name = elementNames[i];
+			loaded[i] = new Provider(Configuration.getBuilderFactory()
+					.getBuilder(name), Configuration.getMarshallerFactory()
+					.getMarshaller(name), Configuration
+					.getUnmarshallerFactory().getUnmarshaller(name));
+		}
+		providers = loaded;
+
+		logger.debug("Cached object providers for " + elementNames.length
+				+ " element types.");
+	}
+
+	/**
+	 * Return the interned QName of a known element type, or null if the
+	 * element type is not known. Does not allocate.
+	 *
+	 * @param namespaceURI
+	 * @param localName
+	 * @return
+	 */
+	public static QName intern(String namespaceURI, String localName) {
+
+		if (localName == null)
+			return null;
+
+		for (QName name : elementNames) {
+			if (name.getLocalPart().equals(localName)
+					&& name.getNamespaceURI().equals(
+							namespaceURI == null ? "" : namespaceURI))
+				return name;
+		}
+		return null;
+	}
+
+	public static XMLObjectBuilder getBuilder(QName name) {
+		Provider provider = find(name);
+		return provider == null ? null : provider.builder;
+	}
+
+	public static Marshaller getMarshaller(QName name) {
+		Provider provider = find(name);
+		return provider == null ? null : provider.marshaller;
+	}
+
+	public static Unmarshaller getUnmarshaller(QName name) {
+		Provider provider = find(name);
+		return provider == null ? null : provider.unmarshaller;
+	}
+
+	/**
+	 * Find the cached providers of an element type.
+	 *
+	 * @param name
+	 * @return
+	 */
+	private static Provider find(QName name) {
+
+		Provider[] loaded = providers;
+
+		if (loaded == null || name == null)
+			return null;
+
+		for (int i = 0; i < elementNames.length; i++) {
+			// Interned names match on identity.
+			if (elementNames[i] == name || elementNames[i].equals(name))
+				return loaded[i];
+		}
+		return null;
+	}
+
+	/**
+	 * The builder, marshaller and unmarshaller of one element type.
+	 */
+	private static class Provider {
+
+		private final XMLObjectBuilder builder;
+		private final Marshaller marshaller;
+		private final Unmarshaller unmarshaller;
+
+		private Provider(XMLObjectBuilder builder, Marshaller marshaller,
+				Unmarshaller unmarshaller) {
+			this.builder = builder;
+			this.marshaller = marshaller;
+			this.unmarshaller = unmarshaller;
+		}
+	}
+}
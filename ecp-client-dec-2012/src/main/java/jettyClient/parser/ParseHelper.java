@@ -18,32 +18,26 @@ package jettyClient.parser;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.InputStream;
 
 import javax.xml.namespace.QName;
-import javax.xml.validation.Schema;
 
 import jettyClient.simpleClient.ClientConfiguration;
 
 import org.opensaml.xml.Configuration;
 import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.XMLObjectBuilder;
 import org.opensaml.xml.io.Marshaller;
 import org.opensaml.xml.io.MarshallerFactory;
 import org.opensaml.xml.io.MarshallingException;
 import org.opensaml.xml.io.Unmarshaller;
 import org.opensaml.xml.io.UnmarshallerFactory;
 import org.opensaml.xml.io.UnmarshallingException;
-import org.opensaml.xml.parse.BasicParserPool;
-import org.opensaml.xml.parse.XMLParserException;
-import org.opensaml.xml.schema.SchemaBuilder;
-import org.opensaml.xml.schema.SchemaBuilder.SchemaLanguage;
 import org.opensaml.xml.util.XMLHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.xml.sax.SAXException;
 
 public class ParseHelper {
 	
@@ -64,12 +58,18 @@ public class ParseHelper {
 		
 		QName defaultElementName = getDefaultElementName(element);
 
-		UnmarshallerFactory unmarshallerFactory = Configuration
-				.getUnmarshallerFactory();
-
-		Unmarshaller unmarshaller = unmarshallerFactory
+		// Known element types are cached, others come from the factory.
+		Unmarshaller unmarshaller = ObjectProviders
 				.getUnmarshaller(defaultElementName);
 
+		if (unmarshaller == null) {
+			UnmarshallerFactory unmarshallerFactory = Configuration
+					.getUnmarshallerFactory();
+
+			unmarshaller = unmarshallerFactory
+					.getUnmarshaller(defaultElementName);
+		}
+
 		XMLObject object = null;
 
 		try {
@@ -83,6 +83,11 @@ public class ParseHelper {
 	/**
 	 * Return the elements DEFAULT_ELEMENT_NAME.
 	 * 
+	 * For the element types known by ObjectProviders, the shared QName
+	 * constant is returned instead of a new QName. Its prefix can differ
+	 * from the prefix used in the node, which does not matter for comparing
+	 * QNames.
+	 * 
 	 * @param node
 	 * @return
 	 */
@@ -90,7 +95,11 @@ public class ParseHelper {
 	public static QName getDefaultElementName(Node node) {
 		if (node == null) return null;
 		
-		QName qName = null;
+		QName qName = ObjectProviders.intern(node.getNamespaceURI(),
+				node.getLocalName());
+
+		if (qName != null)
+			return qName;
 
 		if (node.getPrefix() != null) {
 			qName = new QName(node.getNamespaceURI(), node.getLocalName(),
@@ -122,12 +131,18 @@ public class ParseHelper {
 	 */
 	public static Element marshall(XMLObject object) {
 
-		MarshallerFactory MarshallerFactory = Configuration
-				.getMarshallerFactory();
-
-		Marshaller marshaller = MarshallerFactory.getMarshaller(object
+		// Known element types are cached, others come from the factory.
+		Marshaller marshaller = ObjectProviders.getMarshaller(object
 				.getElementQName());
 
+		if (marshaller == null) {
+			MarshallerFactory MarshallerFactory = Configuration
+					.getMarshallerFactory();
+
+			marshaller = MarshallerFactory.getMarshaller(object
+					.getElementQName());
+		}
+
 		Element element = null;
 
 		try {
@@ -138,69 +153,23 @@ public class ParseHelper {
 		return element;
 	}
 
-	/**
-	 * Create, configure and initialize a parser for a given schema.
-	 * 
-	 * @param schemaFilePath
-	 * @return
-	 */
-	private static BasicParserPool createBasicParserPool(String schemaFilePath) {
-
-		BasicParserPool pool = null;
-		Schema schema = null;
-		InputStream schemaStream = BasicParserPool.class.getResourceAsStream(schemaFilePath);
-		
-		if (schemaStream != null) {
-
-			try {
-				schema = SchemaBuilder.buildSchema(SchemaLanguage.XML,
-						schemaStream);
-			} catch (SAXException e) {
-				logger.debug("SAXException when parsing file " + schemaFilePath);
-			}
-
-			// Configure pool and set schema as given in parameter.
-			pool = new BasicParserPool();
-			pool.setIgnoreElementContentWhitespace(true);
-			pool.setNamespaceAware(true);
-			pool.setSchema(schema);
-
-//			try {
-//				pool.initialize(); // initialize
-//			} catch (ComponentInitializationException e) {
-//				logger.debug("Could not initialize parserpool using schema " +schema +".");
-//			}
-
-		} else {
-			logger.debug("File " + schemaFilePath + " not found.");	
-		}
-		return pool;
-	}
-
 	/**
 	 * Attempt to parse an element from text stored in a byte array, using a
 	 * schema from schemafilepath.
 	 * 
+	 * The parser comes from a pool that is shared for the schema (e.g. SOAP
+	 * Envelope, EntityDescriptor), see ParserPools.
+	 * 
 	 * @param bytes
 	 * @param schemaFilePath
 	 * @return
 	 */
 	public static Element extractElement(ByteArrayInputStream inputStream, String schemaFilePath) {
-		// Create parser pool for the schema. (e.g. SOAP Envelope,
-		// EntityDescriptor)
-		BasicParserPool pool = createBasicParserPool(schemaFilePath);
 		
-		if (pool == null) return null; // :(
-
 		// Create a XML document from the stream/response.
-		Document document = null;
+		Document document = ParserPools.parse(inputStream, schemaFilePath);
 
-		try {
-			document = pool.parse(inputStream);
-		}catch (XMLParserException e) {
-			logger.debug("Unable to parse XML.");
-			return null;
-		}
+		if (document == null) return null; // :(
 
 		// Get the element from the document.
 		return document.getDocumentElement();
@@ -215,8 +184,15 @@ public class ParseHelper {
 	 * @return
 	 */
 	public static XMLObject buildObject(QName defaultElementName) {
-		return Configuration.getBuilderFactory()
-				.getBuilder(defaultElementName).buildObject(defaultElementName);
+		// Known element types are cached, others come from the factory.
+		XMLObjectBuilder builder = ObjectProviders
+				.getBuilder(defaultElementName);
+
+		if (builder == null)
+			builder = Configuration.getBuilderFactory().getBuilder(
+					defaultElementName);
+
+		return builder.buildObject(defaultElementName);
 	}
 
 }
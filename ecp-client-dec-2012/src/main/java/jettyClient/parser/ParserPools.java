@@ -0,0 +1,234 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.validation.Schema;
+
+import jettyClient.simpleClient.ClientConfiguration;
+
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * ParserPools keeps one configured BasicParserPool per schema for the lifetime
+ * of the process. A BasicParserPool is thread-safe, so the same pool is
+ * shared by every thread that parses messages for that schema, and the
+ * DocumentBuilders it hands out are reused between messages.
+ *
+ * Every checkout of a DocumentBuilder is timed, so the cost of getting a
+ * builder from a pool can be followed from getStatistics().
+ *
+ * @author carolina
+ *
+ */
+public class ParserPools {
+
+	// Get the client logger
+	private final static Logger logger = LoggerFactory
+			.getLogger(ClientConfiguration.logger);
+
+	/* Pools, keyed by the schema file path. */
+	private static final ConcurrentMap<String, BasicParserPool> pools = new ConcurrentHashMap<String, BasicParserPool>();
+
+	/* Checkout statistics, keyed by the schema file path. */
+	private static final ConcurrentMap<String, Statistics> statistics = new ConcurrentHashMap<String, Statistics>();
+
+	private static volatile int maxPoolSize = ClientConfiguration.parserPoolMaxSize;
+
+	/**
+	 * Set the maximum number of idle DocumentBuilders each pool keeps. Applies
+	 * to the pools that already exist as well as to new ones.
+	 *
+	 * @param size
+	 */
+	public static void setMaxPoolSize(int size) {
+		maxPoolSize = size;
+
+		for (BasicParserPool pool : pools.values()) {
+			pool.setMaxPoolSize(size);
+		}
+	}
+
+	public static int getMaxPoolSize() {
+		return maxPoolSize;
+	}
+
+	/**
+	 * Return the shared pool for the given schema. The pool is created the
+	 * first time it is asked for.
+	 *
+	 * Returns null if the schema is not available.
+	 *
+	 * @param schemaFilePath
+	 * @return A BasicParserPool or null.
+	 */
+	public static BasicParserPool getPool(String schemaFilePath) {
+
+		BasicParserPool pool = pools.get(schemaFilePath);
+
+		if (pool == null) {
+			pool = createPool(schemaFilePath);
+
+			if (pool != null) {
+				BasicParserPool existing = pools.putIfAbsent(schemaFilePath,
+						pool);
+				if (existing != null)
+					pool = existing;
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Parse a stream with a DocumentBuilder from the pool for the given
+	 * schema. The builder is always returned to the pool.
+	 *
+	 * Returns null if the stream could not be parsed (or did not validate).
+	 *
+	 * @param inputStream
+	 * @param schemaFilePath
+	 * @return The parsed document, or null.
+	 */
+	public static Document parse(InputStream inputStream, String schemaFilePath) {
+
+		BasicParserPool pool = getPool(schemaFilePath);
+
+		if (pool == null)
+			return null;
+
+		DocumentBuilder builder = null;
+		long start = System.nanoTime();
+
+		try {
+			builder = pool.getBuilder();
+		} catch (XMLParserException e) {
+			logger.debug("Could not get a parser for schema " + schemaFilePath);
+			return null;
+		} finally {
+			getStatistics(schemaFilePath).recordCheckout(
+					System.nanoTime() - start);
+		}
+
+		try {
+			return builder.parse(inputStream);
+		} catch (SAXException e) {
+			logger.debug("Unable to parse XML.");
+		} catch (IOException e) {
+			logger.debug("Unable to read XML.");
+		} finally {
+			pool.returnBuilder(builder);
+		}
+		return null;
+	}
+
+	/**
+	 * Return the checkout statistics for the pool of the given schema.
+	 *
+	 * @param schemaFilePath
+	 * @return Statistics, never null.
+	 */
+	public static Statistics getStatistics(String schemaFilePath) {
+
+		Statistics stats = statistics.get(schemaFilePath);
+
+		if (stats == null) {
+			stats = new Statistics();
+			Statistics existing = statistics.putIfAbsent(schemaFilePath, stats);
+			if (existing != null)
+				stats = existing;
+		}
+		return stats;
+	}
+
+	/**
+	 * Create and configure a parser pool for a given schema.
+	 *
+	 * @param schemaFilePath
+	 * @return
+	 */
+	private static BasicParserPool createPool(String schemaFilePath) {
+
+		// The schema is compiled once and shared by all pools.
+		Schema schema = SchemaRegistry.getSchema(schemaFilePath);
+
+		if (schema == null) {
+			logger.debug("No schema available from " + schemaFilePath + ".");
+			return null;
+		}
+
+		// Configure pool and set schema as given in parameter.
+		BasicParserPool pool = new BasicParserPool();
+		pool.setIgnoreElementContentWhitespace(true);
+		pool.setNamespaceAware(true);
+		pool.setSchema(schema);
+		pool.setMaxPoolSize(maxPoolSize);
+
+		logger.debug("Created parser pool for " + schemaFilePath);
+
+		return pool;
+	}
+
+	/**
+	 * Counts DocumentBuilder checkouts and the time spent waiting for them.
+	 */
+	public static class Statistics {
+
+		private final AtomicLong checkouts = new AtomicLong();
+		private final AtomicLong totalWaitNanos = new AtomicLong();
+		private final AtomicLong maxWaitNanos = new AtomicLong();
+
+		private void recordCheckout(long waitNanos) {
+			checkouts.incrementAndGet();
+			totalWaitNanos.addAndGet(waitNanos);
+
+			long max = maxWaitNanos.get();
+			while (waitNanos > max
+					&& !maxWaitNanos.compareAndSet(max, waitNanos)) {
+				max = maxWaitNanos.get();
+			}
+		}
+
+		public long getCheckouts() {
+			return checkouts.get();
+		}
+
+		public long getTotalWaitNanos() {
+			return totalWaitNanos.get();
+		}
+
+		public long getMaxWaitNanos() {
+			return maxWaitNanos.get();
+		}
+
+		public String toString() {
+			return "checkouts=" + getCheckouts() + ", totalWaitNanos="
+					+ getTotalWaitNanos() + ", maxWaitNanos="
+					+ getMaxWaitNanos();
+		}
+	}
+}
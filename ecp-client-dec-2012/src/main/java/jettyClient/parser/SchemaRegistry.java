@@ -0,0 +1,155 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.parser;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
+
+import jettyClient.simpleClient.ClientConfiguration;
+
+import org.opensaml.xml.schema.SchemaBuilder;
+import org.opensaml.xml.schema.SchemaBuilder.SchemaLanguage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+/**
+ * SchemaRegistry compiles each schema file the client uses once and keeps the
+ * compiled Schema for the lifetime of the process.
+ *
+ * A compiled Schema is thread-safe and can be shared. A Validator is not, so
+ * every thread gets its own Validator per schema.
+ *
+ * @author carolina
+ *
+ */
+public class SchemaRegistry {
+
+	// Get the client logger
+	private final static Logger logger = LoggerFactory
+			.getLogger(ClientConfiguration.logger);
+
+	/* Compiled schemas, keyed by the schema file path. */
+	private static final ConcurrentMap<String, Schema> schemas = new ConcurrentHashMap<String, Schema>();
+
+	/* Validators of the current thread, keyed by the schema file path. */
+	private static final ThreadLocal<Map<String, Validator>> validators = new ThreadLocal<Map<String, Validator>>() {
+		@Override
+		protected Map<String, Validator> initialValue() {
+			return new HashMap<String, Validator>();
+		}
+	};
+
+	/**
+	 * Compile all the schemas listed in ClientConfiguration. Should be called
+	 * once when the client is bootstrapped, so that the first message does
+	 * not pay for the compilation.
+	 */
+	public static void warm() {
+		getSchema(ClientConfiguration.soapEnvelopeSchemaLocation);
+		getSchema(ClientConfiguration.metadataSchemaLocation);
+		getSchema(ClientConfiguration.assertionSchemaLocation);
+	}
+
+	/**
+	 * Return the compiled schema for the given schema file. The schema is
+	 * compiled on first use.
+	 *
+	 * Returns null if the schema file could not be found or compiled.
+	 *
+	 * @param schemaFilePath
+	 * @return A compiled Schema or null.
+	 */
+	public static Schema getSchema(String schemaFilePath) {
+
+		Schema schema = schemas.get(schemaFilePath);
+
+		if (schema == null) {
+			schema = buildSchema(schemaFilePath);
+
+			if (schema != null) {
+				// Another thread may have compiled it meanwhile, keep the
+				// first one.
+				Schema existing = schemas.putIfAbsent(schemaFilePath, schema);
+				if (existing != null)
+					schema = existing;
+			}
+		}
+		return schema;
+	}
+
+	/**
+	 * Return a Validator for the given schema file that belongs to the current
+	 * thread. The Validator is reset before it is returned.
+	 *
+	 * Returns null if the schema file could not be found or compiled.
+	 *
+	 * @param schemaFilePath
+	 * @return A Validator or null.
+	 */
+	public static Validator getValidator(String schemaFilePath) {
+
+		Map<String, Validator> threadValidators = validators.get();
+		Validator validator = threadValidators.get(schemaFilePath);
+
+		if (validator == null) {
+			Schema schema = getSchema(schemaFilePath);
+
+			if (schema == null)
+				return null;
+
+			validator = schema.newValidator();
+			threadValidators.put(schemaFilePath, validator);
+		} else {
+			validator.reset();
+		}
+		return validator;
+	}
+
+	/**
+	 * Load a schema file from the classpath and compile it.
+	 *
+	 * @param schemaFilePath
+	 * @return A compiled Schema or null.
+	 */
+	private static Schema buildSchema(String schemaFilePath) {
+
+		InputStream schemaStream = SchemaRegistry.class
+				.getResourceAsStream(schemaFilePath);
+
+		if (schemaStream == null) {
+			logger.debug("File " + schemaFilePath + " not found.");
+			return null;
+		}
+
+		try {
+			Schema schema = SchemaBuilder.buildSchema(SchemaLanguage.XML,
+					schemaStream);
+			logger.debug("Compiled schema " + schemaFilePath);
+			return schema;
+		} catch (SAXException e) {
+			logger.debug("SAXException when parsing file " + schemaFilePath);
+			return null;
+		}
+	}
+}
@@ -19,18 +19,14 @@ package jettyClient.parser;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 
 import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
-import javax.xml.validation.Schema;
 import javax.xml.validation.Validator;
 
 import jettyClient.simpleClient.ClientConfiguration;
 
 
-import org.opensaml.xml.schema.SchemaBuilder;
-import org.opensaml.xml.schema.SchemaBuilder.SchemaLanguage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
@@ -54,18 +50,15 @@ public class ValidateXML {
 	public static boolean isValid(ByteArrayInputStream responseStream, String schemaFilePath) {
 		
 		Source xmlFile = new StreamSource(responseStream);		
-		Schema schema = null;
-		InputStream schemaStream = ValidateXML.class.getResourceAsStream(schemaFilePath);
 		
-		try {
-			schema = SchemaBuilder.buildSchema(SchemaLanguage.XML, schemaStream);
-		} catch (SAXException e) {
+		// The schema is compiled once, the validator belongs to this thread.
+		Validator validator = SchemaRegistry.getValidator(schemaFilePath);
+		
+		if (validator == null) {
 			logger.debug("Invalid schema given.");
 			return false;
 		}
 		
-		Validator validator = schema.newValidator();
-		
 		try {
 			validator.validate(xmlFile);
 		} catch (SAXException e) {
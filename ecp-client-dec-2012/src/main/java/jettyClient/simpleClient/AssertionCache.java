@@ -0,0 +1,144 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.simpleClient;
+
+import jettyClient.paosClient.ExchangeContent;
+import jettyClient.parser.AssertionValidity;
+
+/**
+ * AssertionCache keeps the IdP responses that an SP has accepted, keyed by
+ * the principal, a fingerprint of its credentials (see SessionCache) and the
+ * SP's AssertionConsumerServiceURL, so that the assertion can be presented to
+ * the same SP again without asking the IdP.
+ *
+ * A response is kept until a margin before the NotOnOrAfter of its
+ * assertions. Responses with encrypted assertions, or without a
+ * NotOnOrAfter, are not cached. When the cache is full the least recently
+ * used entry is evicted.
+ *
+ * Only SPs that accept an assertion more than once can use this, so it is
+ * opt-in (ClientOptions.setCacheAssertions). An entry is removed as soon as
+ * the SP rejects it.
+ *
+ * @author carolina
+ *
+ */
+public class AssertionCache {
+
+	private static final AssertionCache shared = new AssertionCache(
+			ClientConfiguration.assertionCacheSize,
+			ClientConfiguration.assertionCacheMargin);
+
+	private final long margin;
+
+	/* The IdP responses */
+	private final ExpiringCache<ExchangeContent> entries;
+
+	/**
+	 * @param maxEntries
+	 *            Maximum number of cached responses.
+	 * @param margin
+	 *            How long before NotOnOrAfter a response stops being used, in
+	 *            milliseconds.
+	 */
+	public AssertionCache(int maxEntries, long margin) {
+		this.margin = margin;
+		this.entries = new ExpiringCache<ExchangeContent>(maxEntries);
+	}
+
+	/**
+	 * The assertion cache that all logins share.
+	 *
+	 * @return
+	 */
+	public static AssertionCache getShared() {
+		return shared;
+	}
+
+	/**
+	 * Return the cached IdP response for the principal and the SP, or null.
+	 *
+	 * @param principal
+	 * @param credentials
+	 * @param assertionConsumerURL
+	 * @return An ExchangeContent with the IdP response.
+	 */
+	public ExchangeContent get(String principal, String credentials,
+			String assertionConsumerURL) {
+		return entries.get(key(principal, credentials, assertionConsumerURL));
+	}
+
+	/**
+	 * Cache an IdP response that the SP accepted. Nothing is cached if the
+	 * validity of its assertions can not be read or is about to end.
+	 *
+	 * @param principal
+	 * @param credentials
+	 * @param assertionConsumerURL
+	 * @param idpContent
+	 *            An ExchangeContent with the IdP response.
+	 */
+	public void put(String principal, String credentials,
+			String assertionConsumerURL, ExchangeContent idpContent) {
+
+		// Only responses that can be spliced into a new envelope as bytes
+		// can be presented again.
+		if (idpContent.getResponseHeaderInfo() == null
+				|| !idpContent.getResponseHeaderInfo().hasBody())
+			return;
+
+		long notOnOrAfter = AssertionValidity.notOnOrAfter(idpContent
+				.getResponseHeaderInfo().getMessage());
+
+		long expires = notOnOrAfter - margin;
+
+		if (notOnOrAfter == -1 || expires <= System.currentTimeMillis())
+			return;
+
+		entries.put(key(principal, credentials, assertionConsumerURL),
+				idpContent, expires);
+	}
+
+	/**
+	 * Remove a cached response, after the SP has rejected it.
+	 *
+	 * @param principal
+	 * @param credentials
+	 * @param assertionConsumerURL
+	 */
+	public void invalidate(String principal, String credentials,
+			String assertionConsumerURL) {
+		entries.remove(key(principal, credentials, assertionConsumerURL));
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * fingerprint + AssertionConsumerServiceURL.
+	 */
+	private static String key(String principal, String credentials,
+			String assertionConsumerURL) {
+		return SessionCache.fingerprint(principal, credentials) + " "
+				+ assertionConsumerURL;
+	}
+}
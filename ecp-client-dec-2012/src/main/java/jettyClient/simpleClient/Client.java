@@ -44,22 +44,16 @@ public class Client {
 	
 	public ExchangeContent accessResource(ClientOptions options, IDPEntry idpEntry) {
 
-		HttpClient httpClient = getClient();
-
-		try {
-			httpClient.start();
-		} catch (Exception e) {
-			logger.debug("Could not start client.");
-		}
-		logger.debug("Client started");
+		// The shared client, started and with warm connections.
+		HttpClient httpClient = EcpHttpClientProvider.getClient();
 
 		// If there is an IdP
 		if (idpEntry != null) {
 
-			Connections connections = new Connections();
-
-			ExchangeContent assertionResponse = connections.accessResource(options,
-					idpEntry, httpClient);
+			// Concurrent logins of the same principal to the same SP wait
+			// for the first one.
+			ExchangeContent assertionResponse = LoginCoalescer.getShared()
+					.accessResource(options, idpEntry, httpClient);
 
 			if (assertionResponse != null) {
 
@@ -107,19 +101,4 @@ public class Client {
 		
 	}
 
-	/**
-	 * Create and configure a Jetty Httpclient.
-	 * 
-	 * @return A HttpClient
-	 */
-	private HttpClient getClient() {
-
-		HttpClient client = new HttpClient();
-		client.setIdleTimeout(1000);
-		client.setTimeout(100000); // STATUS_EXPIRED
-		client.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
-
-		return client;
-	}
-
 }
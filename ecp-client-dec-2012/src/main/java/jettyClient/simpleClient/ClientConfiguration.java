@@ -28,6 +28,9 @@ public class ClientConfiguration {
 	/* Metadata location*/
 	public static final String metadataFolder = "resources/metadata";
 	
+	/* IdP providerIDs that get the password with the first request */
+	public static final String[] preemptiveAuthenticationIdps = {};
+	
 	/* Schema files */
 	public static final String soapEnvelopeSchemaLocation = "/schema/soap-envelope.xsd";
 	public static final String metadataSchemaLocation = "/schema/saml-schema-metadata-2.0.xsd";
@@ -35,6 +38,58 @@ public class ClientConfiguration {
 	// TEST (validates assertion XML)
 	public static final String assertionSchemaLocation = "/schema/saml-schema-assertion-2.0.xsd";
 	
+	/* Maximum number of idle DocumentBuilders kept by each parser pool */
+	public static final int parserPoolMaxSize = 50;
+	
+	/* Shared HttpClient (EcpHttpClientProvider) */
+	public static final int httpMaxConnectionsPerAddress = 32;
+	public static final int httpIdleTimeout = 30000; // Keep-alive, ms
+	public static final long httpTimeout = 100000; // STATUS_EXPIRED, ms
+	public static final int httpMaxThreads = 64;
+	public static final int httpConnectTimeout = 10000; // ms
+	
+	/* Login deadlines (LoginDeadline), 0 = no limit */
+	public static final long spTimeout = 20000; // SP GET, ms
+	public static final long idpTimeout = 30000; // IdP POST, ms
+	public static final long acsTimeout = 20000; // SP ACS POST, ms
+	public static final long loginTimeout = 60000; // whole login, ms
+	
+	/* Concurrent requests per origin (Bulkhead) */
+	public static final int bulkheadLimit = 16;
+	public static final int bulkheadMaxQueued = 64;
+	public static final long bulkheadQueueTimeout = 5000; // ms
+	
+	/* IdP circuit breakers (CircuitBreaker) */
+	public static final int circuitFailureThreshold = 5; // failures in a row
+	public static final long circuitOpenTime = 30000; // ms
+	public static final long circuitLatencySlo = 10000; // ms, 0 = none
+	public static final int circuitHalfOpenProbes = 1;
+	
+	/* Retries of failed exchanges (RetryPolicy) */
+	public static final int retryMax = 2;
+	public static final long retryBaseDelay = 100; // ms
+	public static final long retryMaxDelay = 2000; // ms
+	public static final int retryBudget = 20; // retries per window
+	public static final long retryBudgetWindow = 10000; // ms
+	
+	/* TLS session resumption */
+	public static final int sslSessionCacheSize = 256;
+	public static final int sslSessionTimeout = 3600; // s
+	public static final boolean sslSessionTickets = false;
+	
+	/* Cookie store limits (RFC 6265 section 6.1 minimums) */
+	public static final int maxCookiesPerDomain = 50;
+	public static final int maxCookies = 3000;
+	
+	/* SP session cache */
+	public static final int sessionCacheSize = 1000;
+	public static final long sessionCacheTtl = 30 * 60 * 1000; // ms
+	public static final long idpSessionCacheTtl = 60 * 60 * 1000; // ms
+	
+	/* Assertion cache */
+	public static final int assertionCacheSize = 100;
+	public static final long assertionCacheMargin = 30 * 1000; // ms
+	
 	/* Logger name */
 	public static final String logger = "defaultLogger";
 	
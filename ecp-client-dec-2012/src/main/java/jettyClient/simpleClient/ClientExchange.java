@@ -16,6 +16,13 @@
 
 package jettyClient.simpleClient;
 
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jettyClient.paosClient.Bulkhead;
+
 import org.eclipse.jetty.client.ContentExchange;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,6 +32,10 @@ import org.slf4j.LoggerFactory;
  * can be edited to handle errors and callbacks originating from
  * attempts to send a request.
  * 
+ * A Callback can be set to be notified when the exchange is done, instead of
+ * waiting for it in waitForDone(). The callback is called exactly once, with
+ * the failure that ended the exchange, or null if a response was received.
+ * 
  * @author carolina
  *
  */
@@ -34,6 +45,28 @@ public class ClientExchange extends ContentExchange {
 	private final static Logger logger = LoggerFactory
 			.getLogger(ClientConfiguration.logger);
 	
+	/**
+	 * Callback that is notified when the exchange is done.
+	 */
+	public interface Callback {
+
+		/**
+		 * Called from a Jetty thread when the exchange is done.
+		 * 
+		 * @param exchange
+		 * @param failure
+		 *            Null if the response was received, otherwise the reason
+		 *            the exchange failed.
+		 */
+		public void onDone(ClientExchange exchange, Throwable failure);
+	}
+
+	private volatile Callback callback = null;
+	private volatile Throwable failure = null;
+	private volatile boolean connectionFailed = false;
+	private final AtomicReference<Bulkhead> permit = new AtomicReference<Bulkhead>();
+	private final AtomicBoolean done = new AtomicBoolean(false);
+
 	public ClientExchange(Boolean cache_headers) {
 		super(cache_headers);
 	}
@@ -42,9 +75,112 @@ public class ClientExchange extends ContentExchange {
 		super();
 	}	
 	
+	/**
+	 * Set the callback that is notified when the exchange is done. Must be
+	 * set before the exchange is sent.
+	 * 
+	 * @param callback
+	 */
+	public void setCallback(Callback callback) {
+		this.callback = callback;
+	}
+
+	/**
+	 * Return the failure that ended the exchange, or null.
+	 * 
+	 * @return
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Return true if no connection could be opened, so the request was
+	 * never sent.
+	 * 
+	 * @return
+	 */
+	public boolean isConnectionFailed() {
+		return connectionFailed;
+	}
+
+	/**
+	 * Hold a permit of a bulkhead while the exchange runs. The permit is
+	 * released when the exchange is done.
+	 * 
+	 * @param bulkhead
+	 */
+	public void setPermit(Bulkhead bulkhead) {
+		permit.set(bulkhead);
+	}
+
+	/**
+	 * Release the bulkhead permit, if the exchange holds one. Only the first
+	 * call releases it.
+	 */
+	public void releasePermit() {
+		Bulkhead bulkhead = permit.getAndSet(null);
+		if (bulkhead != null)
+			bulkhead.release();
+	}
+
+	/**
+	 * End an exchange that was not sent, because it was rejected before it
+	 * was dispatched.
+	 * 
+	 * @param x
+	 */
+	public void reject(Throwable x) {
+		done(x);
+	}
+
+	@Override
+	protected void onResponseComplete() throws IOException {
+		super.onResponseComplete();
+		done(null);
+	}
+
+	@Override
+	protected void onException(Throwable x) {
+		super.onException(x);
+		done(x);
+	}
+
+	@Override
+	protected void onExpire() {
+		super.onExpire();
+		done(new SocketTimeoutException("Exchange expired"));
+	}
+
 	@Override
 	protected void onConnectionFailed(Throwable x) {
 		System.out.println("Connection failed: " +x.toString());
 		logger.error("Connection failed: " +x.toString());
+		connectionFailed = true;
+		done(x);
+	}
+
+	/**
+	 * Record the outcome and notify the callback, only the first time.
+	 * 
+	 * @param x
+	 */
+	private void done(Throwable x) {
+		if (!done.compareAndSet(false, true))
+			return;
+
+		failure = x;
+
+		// Let the next request to the origin run before the callback.
+		releasePermit();
+
+		Callback callback = this.callback;
+		if (callback != null) {
+			try {
+				callback.onDone(this, x);
+			} catch (RuntimeException e) {
+				logger.error("Exchange callback failed: " + e.toString());
+			}
+		}
 	}
 }
@@ -17,6 +17,10 @@
 package jettyClient.simpleClient;
 
 import java.net.URL;
+import java.util.EnumMap;
+
+import jettyClient.paosClient.CookieStore;
+import jettyClient.paosClient.RetryPolicy;
 
 public class ClientOptions {
 	
@@ -31,6 +35,35 @@ public class ClientOptions {
 	
 	// The IDP URL is set in the Main class if the IDP-ID matches a metadata entry.
 	private URL idpUrl;
+	
+	// Connect to the IdP while the SP request is in flight.
+	private boolean preconnect = false;
+	
+	// The cookies of this client session.
+	private CookieStore cookieStore = new CookieStore();
+	
+	// Use the SP session of an earlier login of the same principal.
+	private boolean reuseSessions = true;
+	
+	// Present a cached assertion again to an SP that accepts it.
+	private boolean cacheAssertions = false;
+	
+	// Send the credentials with the first request to the IdP.
+	private boolean preemptiveAuthentication = false;
+	
+	// Timeouts of the login phases and of the whole login, ms (LoginDeadline)
+	private long spTimeout = ClientConfiguration.spTimeout;
+	private long idpTimeout = ClientConfiguration.idpTimeout;
+	private long acsTimeout = ClientConfiguration.acsTimeout;
+	private long loginTimeout = ClientConfiguration.loginTimeout;
+	
+	// Retry policies of the login phases, null = no retries
+	private EnumMap<LoginDeadline.Phase, RetryPolicy> retryPolicies = new EnumMap<LoginDeadline.Phase, RetryPolicy>(
+			LoginDeadline.Phase.class);
+	{
+		for (LoginDeadline.Phase phase : LoginDeadline.Phase.values())
+			retryPolicies.put(phase, RetryPolicy.getShared());
+	}
 
 	/*Getters and setters */
 	
@@ -62,6 +95,145 @@ public class ClientOptions {
 		this.idpUrl = idpUrl;
 	}
 	
+	/**
+	 * If true, the connection to the IdP is opened at the same time as the
+	 * GET request is sent to the SP, so that it is ready when the
+	 * AuthnRequest is forwarded.
+	 * 
+	 * @return
+	 */
+	public boolean isPreconnect() {
+		return preconnect;
+	}
+	public void setPreconnect(boolean preconnect) {
+		this.preconnect = preconnect;
+	}
+	
+	/**
+	 * The cookie store of the client session. Every exchange of a login
+	 * stores and sends its cookies here. A login that reuses a cached session
+	 * copies the cached cookies into this store.
+	 * 
+	 * @return
+	 */
+	public CookieStore getCookieStore() {
+		return cookieStore;
+	}
+	public void setCookieStore(CookieStore cookieStore) {
+		this.cookieStore = cookieStore;
+	}
+	
+	/**
+	 * If true, a login first tries the SP session of an earlier login of
+	 * the same principal to the same SP (see SessionCache), and only does
+	 * ECP if the SP asks for it.
+	 * 
+	 * @return
+	 */
+	public boolean isReuseSessions() {
+		return reuseSessions;
+	}
+	public void setReuseSessions(boolean reuseSessions) {
+		this.reuseSessions = reuseSessions;
+	}
+	
+	/**
+	 * If true, an IdP response that the SP accepted is kept until shortly
+	 * before its assertions expire (see AssertionCache), and is presented
+	 * again at the next login of the same principal to the same SP instead
+	 * of asking the IdP.
+	 * 
+	 * @return
+	 */
+	public boolean isCacheAssertions() {
+		return cacheAssertions;
+	}
+	public void setCacheAssertions(boolean cacheAssertions) {
+		this.cacheAssertions = cacheAssertions;
+	}
+	
+	/**
+	 * If true, the HTTP BASIC credentials are sent with the AuthnRequest,
+	 * instead of after the IdP has answered with a 401 challenge. The
+	 * envelope is then uploaded once.
+	 * 
+	 * @return
+	 */
+	public boolean isPreemptiveAuthentication() {
+		return preemptiveAuthentication;
+	}
+	public void setPreemptiveAuthentication(boolean preemptiveAuthentication) {
+		this.preemptiveAuthentication = preemptiveAuthentication;
+	}
+	
+	/**
+	 * How long the GET to the SP may take, in milliseconds. 0 means no
+	 * limit other than the login timeout.
+	 * 
+	 * @return
+	 */
+	public long getSpTimeout() {
+		return spTimeout;
+	}
+	public void setSpTimeout(long spTimeout) {
+		this.spTimeout = spTimeout;
+	}
+	
+	/**
+	 * How long the POST to the IdP may take, in milliseconds.
+	 * 
+	 * @return
+	 */
+	public long getIdpTimeout() {
+		return idpTimeout;
+	}
+	public void setIdpTimeout(long idpTimeout) {
+		this.idpTimeout = idpTimeout;
+	}
+	
+	/**
+	 * How long the POST to the SP's assertion consumer may take, in
+	 * milliseconds.
+	 * 
+	 * @return
+	 */
+	public long getAcsTimeout() {
+		return acsTimeout;
+	}
+	public void setAcsTimeout(long acsTimeout) {
+		this.acsTimeout = acsTimeout;
+	}
+	
+	/**
+	 * How long the whole login may take, in milliseconds. Every phase gets
+	 * at most what is left of it. 0 means no limit.
+	 * 
+	 * @return
+	 */
+	public long getLoginTimeout() {
+		return loginTimeout;
+	}
+	public void setLoginTimeout(long loginTimeout) {
+		this.loginTimeout = loginTimeout;
+	}
+	
+	/**
+	 * The policy for retrying the exchange of a login phase, or null if it
+	 * is not retried. The POST to the assertion consumer is only sent again
+	 * if the SP could not have received it; a new ECP flow is started
+	 * instead, as long as the policy allows.
+	 * 
+	 * @param phase
+	 * @return
+	 */
+	public RetryPolicy getRetryPolicy(LoginDeadline.Phase phase) {
+		return retryPolicies.get(phase);
+	}
+	public void setRetryPolicy(LoginDeadline.Phase phase,
+			RetryPolicy retryPolicy) {
+		retryPolicies.put(phase, retryPolicy);
+	}
+	
 	public boolean isVerbose() {
 		return verbose;
 	}
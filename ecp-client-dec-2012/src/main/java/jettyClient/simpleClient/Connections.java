@@ -17,14 +17,21 @@
 package jettyClient.simpleClient;
 
 import java.io.Console;
+import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.List;
 
 import jettyClient.EnvelopeHandling.EnvelopeCreator;
+import jettyClient.EnvelopeHandling.EnvelopeParts;
+import jettyClient.metadata.CircuitBreaker;
 import jettyClient.paosClient.ExchangeContent;
+import jettyClient.paosClient.ExchangeFuture;
+import jettyClient.paosClient.ExchangeListener;
 import jettyClient.paosClient.PaosClient;
-import jettyClient.parser.ExtractField;
+import jettyClient.paosClient.RetryPolicy;
+import jettyClient.parser.EcpHeaderInfo;
 import jettyClient.parser.ParseHelper;
 
 import org.eclipse.jetty.client.HttpClient;
@@ -57,11 +64,10 @@ public class Connections {
 	private final static Logger logger = LoggerFactory
 			.getLogger(ClientConfiguration.logger);
 
-	private boolean verbose = false;
-
 	/**
 	 * Access some resource at a SP. Returns an ExchangeContent object that
-	 * contains the response that was sent from the IdP.
+	 * contains the response that was sent from the IdP. The shared client of
+	 * EcpHttpClientProvider is used.
 	 * 
 	 * @param spHost
 	 * @param spPort
@@ -69,112 +75,920 @@ public class Connections {
 	 * @throws Exception
 	 */
 
+	public ExchangeContent accessResource(ClientOptions options,
+			IDPEntry idpEntry) {
+		return accessResource(options, idpEntry,
+				EcpHttpClientProvider.getClient());
+	}
+
+	/**
+	 * Access some resource at a SP, using the given HttpClient.
+	 * 
+	 * @param options
+	 * @param idpEntry
+	 * @param httpClient
+	 * @return
+	 */
 	public ExchangeContent accessResource(ClientOptions options, IDPEntry idpEntry,
 			HttpClient httpClient) {
+		// The options and the time budget of this login.
+		return accessResource(new LoginContext(options), idpEntry, httpClient);
+	}
+
+	/**
+	 * Access some resource at a SP, within a login that has already been
+	 * started, so that only what is left of its budget is used.
+	 * 
+	 * @param login
+	 * @param idpEntry
+	 * @param httpClient
+	 * @return
+	 */
+	ExchangeContent accessResource(LoginContext login, IDPEntry idpEntry,
+			HttpClient httpClient) {
+
+		ClientOptions options = login.getOptions();
 
 		PaosClient paosClient = null;
 
 		ExchangeContent spContent = null;
-		URL assertionConsumerEndpoint = null;
 
-		// Set parameters from options in args.
-		setParameters(options);
+		// Use the SP session of an earlier login, if there is one.
+		boolean cachedSession = useCachedSession(options, idpEntry);
 
 		// Create a Paos HttpClient.
-		paosClient = new PaosClient(httpClient);
+		paosClient = new PaosClient(httpClient,
+				options.getCookieStore());
+
+		// Open the IdP connection while waiting for the SP.
+		if (!cachedSession)
+			preconnectIdP(options, idpEntry, paosClient);
+
+		// Get the AuthnRequest from the SP, or the resource if the cached
+		// session is still valid.
+		spContent = getRequestToSP(options.getSpURL(), paosClient, login);
+
+		if (sessionReused(options, cachedSession, spContent))
+			return spContent;
+
+		// Present a cached assertion, if the SP accepted one before.
+		ExchangeContent cachedIdpContent = cachedAssertion(options, spContent);
+
+		if (cachedIdpContent != null) {
+			ExchangeContent assertionContent = createAssertionContent(
+					spContent, cachedIdpContent, login);
+			assertionContent = paosClient.send(
+					assertionContent.getEndpointURL(), assertionContent);
+
+			if (assertionAccepted(options, spContent, assertionContent)) {
+				printSpResponse(options, assertionContent);
+				cacheSession(options, assertionContent);
+				return assertionContent;
+			}
+
+			// The SP has used up its AuthnRequest, ask for a new one.
+			spContent = getRequestToSP(options.getSpURL(), paosClient, login);
+		}
+
+		ExchangeContent assertionContent = ecp(spContent, idpEntry,
+				paosClient, login);
+
+		// An assertion that the SP may have consumed is not sent again.
+		// Start a new ECP flow instead, as long as the retry policy allows.
+		for (int flows = 0;; flows++) {
+			long delay = login.newFlowDelay(assertionContent, flows);
+
+			if (delay < 0 || !pause(delay))
+				break;
+
+			logger.info("Starting a new ECP flow after " + delay + " ms.");
+			spContent = getRequestToSP(options.getSpURL(), paosClient, login);
+			assertionContent = ecp(spContent, idpEntry, paosClient, login);
+		}
+
+		// This return is unnecessary in a normal SP exchange.
+		return assertionContent;
+	}
+
+	/**
+	 * Forward the AuthnRequest of the SP to the IdP, send the IdP response
+	 * to the SP, and return the SP response. Returns null if there was no
+	 * AuthnRequest or no IdP response.
+	 * 
+	 * @param spContent
+	 * @param idpEntry
+	 * @param paosClient
+	 * @param login
+	 * @return
+	 */
+	private ExchangeContent ecp(ExchangeContent spContent, IDPEntry idpEntry,
+			PaosClient paosClient, LoginContext login) {
+
+		ClientOptions options = login.getOptions();
+
+		if (spContent.getResponseHeaderInfo() == null) {
+			logger.debug("The SP did not respond to the GET request.");
+			return null; // :(
+		}
+
+		// Check if we received an AuthnRequest as a response.
+		// validate(spContent.getEnvelope.getbody.getUnknownXMLObjects);
+
+		if (loginExpired("AuthnRequest to the IdP", login))
+			return null;
+
+		// Get the response from the IdP.
+		ExchangeContent idpContent = getIdpResponse(spContent, idpEntry,
+				paosClient, login);
+
+		if (loginExpired("IdP response to the SP", login))
+			return null;
+
+		// Create the exchangeContent with the IdP response (or a soap
+		// fault), that is ready to be sent to the SP.
+		ExchangeContent assertionContent = createAssertionContent(spContent,
+				idpContent, login);
+
+		if (assertionContent == null) {
+			logger.debug("The IdP did not respond to the AuthnRequest.");
+			return null;
+		}
+
+		// Send the exchangeContent.
+		assertionContent = paosClient.send(assertionContent.getEndpointURL(),
+				assertionContent);
+
+		printSpResponse(options, assertionContent);
+		cacheSession(options, assertionContent);
+		cacheAssertion(options, spContent, idpContent, assertionContent);
+
+		return assertionContent;
+	}
+
+	/**
+	 * Access some resource at a SP without blocking the calling thread. The
+	 * SP -> IdP -> SP exchanges are chained on the responses, and the
+	 * returned future is completed with the same ExchangeContent as
+	 * accessResource() returns, null included.
+	 * 
+	 * The future fails if any of the exchanges could not be completed. The
+	 * shared client of EcpHttpClientProvider is used.
+	 * 
+	 * @param options
+	 * @param idpEntry
+	 * @return
+	 */
+	public ExchangeFuture accessResourceAsync(ClientOptions options,
+			IDPEntry idpEntry) {
+		return accessResourceAsync(options, idpEntry,
+				EcpHttpClientProvider.getClient());
+	}
+
+	/**
+	 * Access some resource at a SP without blocking, using the given
+	 * HttpClient.
+	 * 
+	 * @param options
+	 * @param idpEntry
+	 * @param httpClient
+	 * @return
+	 */
+	public ExchangeFuture accessResourceAsync(final ClientOptions options,
+			final IDPEntry idpEntry, HttpClient httpClient) {
+
+		final ExchangeFuture result = new ExchangeFuture();
+
+		// The options and the time budget of this login.
+		final LoginContext login = new LoginContext(options);
+
+		// Use the SP session of an earlier login, if there is one.
+		final boolean cachedSession = useCachedSession(options, idpEntry);
+
+		final PaosClient paosClient = new PaosClient(httpClient,
+				options.getCookieStore());
+
+		// Open the IdP connection while waiting for the SP.
+		if (!cachedSession)
+			preconnectIdP(options, idpEntry, paosClient);
 
 		// Get the AuthnRequest from the SP
-		spContent = getRequestToSP(options.getSpURL(), paosClient);
+		paosClient.sendHttpGETRequestAsync(
+				options.getSpURL(),
+				login.forPhase(new ExchangeContent(null, null),
+						LoginDeadline.Phase.SP_REQUEST)).addListener(
+				new ExchangeListener() {
+					public void onDone(ExchangeFuture spFuture) {
+						try {
+							onSpResponse(spFuture, cachedSession, login,
+									idpEntry, paosClient, result, 0);
+						} catch (RuntimeException e) {
+							result.fail(e);
+						}
+					}
+				});
+
+		return result;
+	}
 
-		if (spContent.getResponseParts() != null) {
-			String spAssertionConsumer = ExtractField
-					.extractAssertionConsumerURL(spContent.getResponseParts()
-							.getHeader());
+	/**
+	 * Forward the AuthnRequest the SP sent to the IdP.
+	 * 
+	 * @param flows
+	 *            How many new ECP flows have been started.
+	 */
+	private void onSpResponse(ExchangeFuture spFuture, boolean cachedSession,
+			final LoginContext login, final IDPEntry idpEntry,
+			final PaosClient paosClient, final ExchangeFuture result,
+			final int flows) {
 
-			// Check if we received an AuthnRequest as a response.
-			// validate(spContent.getEnvelope.getbody.getUnknownXMLObjects);
+		ClientOptions options = login.getOptions();
 
-			// Get the SOAP Envelope Body from the IdP that contains the
-			// response or a soap fault.
-			Body body = getResponseBody(spContent, idpEntry, paosClient, options);
+		if (spFuture.getFailure() != null) {
+			result.fail(spFuture.getFailure());
+			return;
+		}
 
-			if (body != null) {
-				if (verbose) {
-					System.out.println("Received from idp: \n"
-							+ ParseHelper.anythingToXMLString(body));
-				}
+		final ExchangeContent spContent = spFuture.getContent();
 
-				logger.debug("Received from idp: \n"
-						+ ParseHelper.anythingToXMLString(body));
+		if (sessionReused(options, cachedSession, spContent)) {
+			result.complete(spContent);
+			return;
+		}
+
+		if (spContent.getResponseHeaderInfo() == null) {
+			logger.debug("The SP did not respond to the GET request.");
+			result.complete(null);
+			return;
+		}
+
+		ExchangeContent cachedIdpContent = cachedAssertion(options, spContent);
+
+		if (cachedIdpContent != null) {
+			presentCachedAssertion(spContent, cachedIdpContent, login,
+					idpEntry, paosClient, result);
+			return;
+		}
+
+		if (loginExpired("AuthnRequest to the IdP", login)) {
+			result.fail(new SocketTimeoutException("Login deadline exceeded"));
+			return;
+		}
+
+		final ExchangeContent idpContent = createIdpContent(spContent,
+				idpEntry, login);
+
+		if (idpContent == null) {
+			result.complete(null);
+			return;
+		}
+
+		// Fail at once if the IdP is known to be down.
+		final CircuitBreaker breaker = circuitBreaker(idpEntry);
+
+		if (breaker != null && !breaker.allowRequest()) {
+			result.fail(new IOException("The IdP "
+					+ breaker.getProviderID() + " is unavailable."));
+			return;
+		}
+
+		final long start = System.currentTimeMillis();
+
+		paosClient.sendAsync(idpContent.getEndpointURL(), idpContent)
+				.addListener(new ExchangeListener() {
+					public void onDone(ExchangeFuture idpFuture) {
+						try {
+							recordIdpResponse(breaker, idpContent, start);
+							onIdpResponse(idpFuture, spContent, login,
+									idpEntry, paosClient, result, flows);
+						} catch (RuntimeException e) {
+							result.fail(e);
+						}
+					}
+				});
+	}
+
+	/**
+	 * Send a cached IdP response to the SP. If the SP rejects it, get a new
+	 * AuthnRequest and go on with ECP; the entry has been removed from the
+	 * cache, so this is done only once.
+	 */
+	private void presentCachedAssertion(final ExchangeContent spContent,
+			ExchangeContent cachedIdpContent, final LoginContext login,
+			final IDPEntry idpEntry, final PaosClient paosClient,
+			final ExchangeFuture result) {
+
+		final ClientOptions options = login.getOptions();
+		ExchangeContent assertionContent = createAssertionContent(spContent,
+				cachedIdpContent, login);
+
+		paosClient.sendAsync(assertionContent.getEndpointURL(),
+				assertionContent).addListener(new ExchangeListener() {
+			public void onDone(ExchangeFuture spFuture) {
+				try {
+					// A failed exchange also removes the cached assertion.
+					ExchangeContent spResponse = spFuture.getFailure() == null ? spFuture
+							.getContent() : null;
+
+					if (assertionAccepted(options, spContent, spResponse)) {
+						printSpResponse(options, spFuture.getContent());
+						cacheSession(options, spFuture.getContent());
+						result.complete(spFuture.getContent());
+						return;
+					}
+
+					startFlow(login, idpEntry, paosClient, result, 0);
+				} catch (RuntimeException e) {
+					result.fail(e);
+				}
 			}
+		});
+	}
 
-			// Build the envelope you want to send.
-			Envelope assertionEnvelope = EnvelopeCreator
-					.createSpResponseEnvelope(body);
+	/**
+	 * Get a new AuthnRequest from the SP and go on with ECP.
+	 * 
+	 * @param flows
+	 *            How many new ECP flows have been started.
+	 */
+	private void startFlow(final LoginContext login,
+			final IDPEntry idpEntry, final PaosClient paosClient,
+			final ExchangeFuture result, final int flows) {
+
+		ExchangeContent spContent = login.forPhase(new ExchangeContent(null,
+				null), LoginDeadline.Phase.SP_REQUEST);
+
+		paosClient.sendHttpGETRequestAsync(login.getOptions().getSpURL(),
+				spContent)
+				.addListener(new ExchangeListener() {
+					public void onDone(ExchangeFuture spFuture) {
+						try {
+							onSpResponse(spFuture, false, login, idpEntry,
+									paosClient, result, flows);
+						} catch (RuntimeException e) {
+							result.fail(e);
+						}
+					}
+				});
+	}
 
-			// Build an empty exchangeContent with the envelope
-			ExchangeContent assertionContent = new ExchangeContent(
-					assertionEnvelope, null);
+	/**
+	 * Send the IdP response (or a SOAP fault) to the SP, and complete the
+	 * result with the SP response. If the SP response is lost, a new ECP
+	 * flow is started as long as the retry policy allows.
+	 */
+	private void onIdpResponse(ExchangeFuture idpFuture,
+			final ExchangeContent spContent, final LoginContext login,
+			final IDPEntry idpEntry, final PaosClient paosClient,
+			final ExchangeFuture result, final int flows) {
 
-			// Turn the assertionConsumer string into an URL
-			assertionConsumerEndpoint = getURL(spAssertionConsumer);
+		final ClientOptions options = login.getOptions();
 
-			// Add the sp session cookie back
-			assertionContent.setCookieField(spContent.getCookieField());
+		if (idpFuture.getFailure() != null) {
+			result.fail(idpFuture.getFailure());
+			return;
+		}
 
-			// Send the exchangeContent.
-			assertionContent = paosClient.send(assertionConsumerEndpoint,
-					assertionContent);
+		final ExchangeContent idpContent = idpFuture.getContent();
 
-			String envelopeString = ParseHelper
-					.anythingToXMLString(assertionEnvelope);
+		cacheIdpSession(options, idpContent);
 
-			System.out.println("Sending envelope to SP endpoint: "
-					+ options.getSpEndpoint());
-			System.out.println(envelopeString);
-			logger.info("Sent to SP: \n" + envelopeString);
+		if (loginExpired("IdP response to the SP", login)) {
+			result.fail(new SocketTimeoutException("Login deadline exceeded"));
+			return;
+		}
 
-			if (assertionContent.getOtherResponse() != null) {
-				System.out.println("Response received from SP: \n");
-				System.out.println(new String(assertionContent.getOtherResponse()));
+		final ExchangeContent assertionContent = createAssertionContent(
+				spContent, idpContent, login);
+
+		if (assertionContent == null) {
+			logger.debug("The IdP did not respond to the AuthnRequest.");
+			result.complete(null);
+			return;
+		}
+
+		paosClient.sendAsync(assertionContent.getEndpointURL(),
+				assertionContent).addListener(new ExchangeListener() {
+			public void onDone(ExchangeFuture spFuture) {
+				try {
+					long delay = login.newFlowDelay(assertionContent, flows);
+
+					if (delay >= 0) {
+						logger.info("Starting a new ECP flow after " + delay
+								+ " ms.");
+						paosClient.retryLater(delay, result, new Runnable() {
+							public void run() {
+								startFlow(login, idpEntry, paosClient,
+										result, flows + 1);
+							}
+						});
+						return;
+					}
+
+					if (spFuture.getFailure() != null) {
+						result.fail(spFuture.getFailure());
+						return;
+					}
+
+					printSpResponse(options, spFuture.getContent());
+					cacheSession(options, spFuture.getContent());
+					cacheAssertion(options, spContent, idpContent,
+							spFuture.getContent());
+					result.complete(spFuture.getContent());
+				} catch (RuntimeException e) {
+					result.fail(e);
+				}
 			}
+		});
+	}
+
+	/**
+	 * Print the envelope that was sent to the SP and the resource that was
+	 * received.
+	 * 
+	 * @param options
+	 * @param assertionContent
+	 */
+	private void printSpResponse(ClientOptions options,
+			ExchangeContent assertionContent) {
+
+		String envelopeString = requestToString(assertionContent);
+
+		System.out.println("Sending envelope to SP endpoint: "
+				+ options.getSpEndpoint());
+		System.out.println(envelopeString);
+		logger.info("Sent to SP: \n" + envelopeString);
+
+		if (assertionContent.getOtherResponse() != null) {
+			System.out.println("Response received from SP: \n");
+			System.out.println(new String(assertionContent.getOtherResponse()));
+		}
+	}
+
+	/**
+	 * If session reuse is on and an earlier login of the principal to the SP
+	 * has been cached, copy its cookies into the cookie store of this login.
+	 * 
+	 * If there is an IdP session of the principal, its cookies are copied as
+	 * well, so that the IdP session cookies are sent with the AuthnRequest if
+	 * the SP asks for ECP. The IdP asks for the password only if it has ended
+	 * the session.
+	 * 
+	 * The cookie store of the options stays the same object; only the cached
+	 * cookies are added to it.
+	 * 
+	 * @param options
+	 * @param idpEntry
+	 * @return true if a cached SP session will be tried.
+	 */
+	private boolean useCachedSession(ClientOptions options, IDPEntry idpEntry) {
+
+		if (!options.isReuseSessions() || options.getPrincipal() == null)
+			return false;
+
+		URL idpURL = expectedIdpURL(options, idpEntry);
+
+		if (idpURL != null
+				&& SessionCache.getIdpShared().restore(options.getPrincipal(),
+						options.getCredentials(), idpURL,
+						options.getCookieStore()))
+			logger.debug("Using the cached IdP session of "
+					+ options.getPrincipal() + ".");
+
+		if (SessionCache.getShared().restore(options.getPrincipal(),
+				options.getCredentials(), options.getSpURL(),
+				options.getCookieStore())) {
+			logger.debug("Trying the cached SP session of "
+					+ options.getPrincipal() + ".");
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Cache the IdP cookies of a login that the IdP answered with an ECP
+	 * response, so that the IdP session can be used by the next login of the
+	 * principal to another SP. The SP cookies of the login are not cached
+	 * with them.
+	 * 
+	 * @param options
+	 * @param idpContent
+	 *            The IdP response.
+	 */
+	private void cacheIdpSession(ClientOptions options,
+			ExchangeContent idpContent) {
+
+		if (!options.isReuseSessions() || options.getPrincipal() == null
+				|| idpContent == null || idpContent.getEndpointURL() == null)
+			return;
+
+		EcpHeaderInfo idpHeaderInfo = idpContent.getResponseHeaderInfo();
+
+		if (idpContent.getResponseStatus() == 200 && idpHeaderInfo != null
+				&& !idpHeaderInfo.isFault())
+			SessionCache.getIdpShared().put(options.getPrincipal(),
+					options.getCredentials(), idpContent.getEndpointURL(),
+					options.getCookieStore());
+	}
+
+	/**
+	 * Return true if the SP answered the request with a cached session with
+	 * the resource. If it answered with a PAOS request instead, the session
+	 * is removed from the cache and the caller goes on with ECP.
+	 * 
+	 * @param options
+	 * @param cachedSession
+	 * @param spContent
+	 * @return
+	 */
+	private boolean sessionReused(ClientOptions options, boolean cachedSession,
+			ExchangeContent spContent) {
+
+		if (!cachedSession)
+			return false;
+
+		if (spContent.getResponseHeaderInfo() == null
+				&& spContent.getResponseStatus() == 200) {
+			logger.debug("Reused the cached SP session.");
+			return true;
+		}
+
+		logger.debug("The cached SP session has ended.");
+		SessionCache.getShared().invalidate(options.getPrincipal(),
+				options.getCredentials(), options.getSpURL());
+		return false;
+	}
+
+	/**
+	 * Cache a copy of the cookies of a login that the SP accepted, so the SP
+	 * session can be used by the next login of the principal.
+	 * 
+	 * @param options
+	 * @param assertionContent
+	 *            The SP response to the ECP Response.
+	 */
+	private void cacheSession(ClientOptions options,
+			ExchangeContent assertionContent) {
+
+		if (!options.isReuseSessions() || options.getPrincipal() == null
+				|| assertionContent == null)
+			return;
+
+		int status = assertionContent.getResponseStatus();
+
+		if ((status == 200 || status == 302)
+				&& assertionContent.getResponseHeaderInfo() == null)
+			SessionCache.getShared().put(options.getPrincipal(),
+					options.getCredentials(), options.getSpURL(),
+					options.getCookieStore());
+	}
+
+	/**
+	 * If assertion caching is on, return the IdP response that the SP
+	 * accepted at an earlier login of the principal, or null.
+	 * 
+	 * @param options
+	 * @param spContent
+	 *            The SP response with the AuthnRequest.
+	 * @return
+	 */
+	private ExchangeContent cachedAssertion(ClientOptions options,
+			ExchangeContent spContent) {
+
+		if (!options.isCacheAssertions() || options.getPrincipal() == null
+				|| spContent.getResponseHeaderInfo() == null)
+			return null;
+
+		ExchangeContent idpContent = AssertionCache.getShared().get(
+				options.getPrincipal(), options.getCredentials(),
+				spContent.getResponseHeaderInfo().getResponseConsumerURL());
+
+		if (idpContent != null)
+			logger.debug("Presenting the cached assertion of "
+					+ options.getPrincipal() + ".");
+		return idpContent;
+	}
+
+	/**
+	 * Return true if the SP accepted a cached assertion. If it did not, the
+	 * assertion is removed from the cache.
+	 * 
+	 * @param options
+	 * @param spContent
+	 *            The SP response with the AuthnRequest.
+	 * @param assertionContent
+	 *            The SP response to the cached assertion.
+	 * @return
+	 */
+	private boolean assertionAccepted(ClientOptions options,
+			ExchangeContent spContent, ExchangeContent assertionContent) {
+
+		int status = assertionContent == null ? -1 : assertionContent
+				.getResponseStatus();
 
-			// This return is unnecessary in a normal SP exchange.
-			return assertionContent;
+		if ((status == 200 || status == 302)
+				&& assertionContent.getResponseHeaderInfo() == null) {
+			logger.debug("The SP accepted the cached assertion.");
+			return true;
 		}
-		logger.debug("The SP did not respond to the GET request.");
-		return null; // :(
+
+		logger.debug("The SP rejected the cached assertion.");
+		AssertionCache.getShared().invalidate(options.getPrincipal(),
+				options.getCredentials(),
+				spContent.getResponseHeaderInfo().getResponseConsumerURL());
+		return false;
+	}
+
+	/**
+	 * Cache the IdP response of a login that the SP accepted, so that it can
+	 * be presented again until it expires. Only responses that were spliced
+	 * into the SP envelope as bytes are cached, since the unmarshalled Body
+	 * of a response can be put into one envelope only.
+	 * 
+	 * @param options
+	 * @param spContent
+	 *            The SP response with the AuthnRequest.
+	 * @param idpContent
+	 *            The IdP response.
+	 * @param assertionContent
+	 *            The SP response to the IdP response.
+	 */
+	private void cacheAssertion(ClientOptions options,
+			ExchangeContent spContent, ExchangeContent idpContent,
+			ExchangeContent assertionContent) {
+
+		if (!options.isCacheAssertions() || options.getPrincipal() == null
+				|| assertionContent == null
+				|| assertionContent.getRequestBytes() == null)
+			return;
+
+		int status = assertionContent.getResponseStatus();
+
+		if ((status == 200 || status == 302)
+				&& assertionContent.getResponseHeaderInfo() == null)
+			AssertionCache.getShared().put(options.getPrincipal(),
+					options.getCredentials(),
+					spContent.getResponseHeaderInfo().getResponseConsumerURL(),
+					idpContent);
 	}
 
-	// Set the -verbose parameter
-	private void setParameters(ClientOptions options) {
-		verbose = options.isVerbose();
+	/**
+	 * If the preconnect option is set, open the connection to the IdP without
+	 * waiting for it. The IdP URL is taken from the options, or else from
+	 * the chosen IdPEntry, since the SP has not said anything yet.
+	 * 
+	 * @param options
+	 * @param idpEntry
+	 * @param paosClient
+	 */
+	private void preconnectIdP(ClientOptions options, IDPEntry idpEntry,
+			PaosClient paosClient) {
+
+		if (!options.isPreconnect())
+			return;
+
+		URL idpURL = expectedIdpURL(options, idpEntry);
+
+		if (idpURL != null) {
+			logger.debug("Connecting to " + idpURL.getHost()
+					+ " during the SP request.");
+			paosClient.preconnect(idpURL);
+		}
 	}
 
 	/**
-	 * Return a SOAP Envelope Body that contains the Response the IdP sent, if
-	 * there is one.
+	 * The URL of the IdP that will be used, before the SP has sent its list
+	 * of IdPs: the IdP URL of the options, or else the chosen IdPEntry's.
+	 * 
+	 * @param options
+	 * @param idpEntry
+	 * @return The URL, or null.
+	 */
+	private URL expectedIdpURL(ClientOptions options, IDPEntry idpEntry) {
+
+		URL idpURL = options.getIdpUrl();
+		if (idpURL == null && idpEntry != null && idpEntry.getLoc() != null)
+			idpURL = getURL(idpEntry.getLoc());
+		return idpURL;
+	}
+
+	/**
+	 * Wait before a new flow. Returns false if the thread was interrupted.
+	 */
+	private boolean pause(long delay) {
+		try {
+			Thread.sleep(delay);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Return true, and log it, if the login budget was used up before the
+	 * given phase.
+	 * 
+	 * @param phase
+	 * @param login
+	 * @return
+	 */
+	private boolean loginExpired(String phase, LoginContext login) {
+
+		if (!login.getDeadline().isExpired())
+			return false;
+
+		logger.info("The login took too long, not sending the " + phase
+				+ ".");
+		return true;
+	}
+
+	/**
+	 * Return an ExchangeContent with the envelope that will be sent to the
+	 * SP. The envelope Body is the Response the IdP sent, or a SOAP fault if
+	 * the IdP response was not for the SP's AssertionConsumerURL.
+	 * 
+	 * The envelope is assembled from the bytes the IdP sent whenever
+	 * possible, so the IdP Body is never unmarshalled. The endpoint URL and
+	 * the SP session cookie are set.
 	 * 
 	 * Returns null if the IdP returned no response at all. Nothing.
 	 * 
 	 * @return
 	 */
-	private Body getResponseBody(ExchangeContent spContent, IDPEntry idpEntry,
-			PaosClient paosClient, ClientOptions options) {
+	private ExchangeContent createAssertionContent(ExchangeContent spContent,
+			ExchangeContent idpContent, LoginContext login) {
+
+		// If the IdP sent back nothing at all (the paosclient has complained
+		// about this).
+		if (idpContent == null)
+			return null;
+
+		EcpHeaderInfo spHeaderInfo = spContent.getResponseHeaderInfo();
+		ExchangeContent assertionContent = login.forPhase(new ExchangeContent(
+				null, null), LoginDeadline.Phase.ACS_REQUEST);
+		Body body = null;
+
+		// Turn the assertionConsumer string into an URL
+		assertionContent.setEndpointURL(getURL(spHeaderInfo
+				.getResponseConsumerURL()));
+
+		// Add the sp session cookie back
+		assertionContent.setCookieField(spContent.getCookieField());
+
+		// Check assertionConsumerURL. If it does not match, send a SOAP
+		// fault to the SP/endpoint
+		if (consumerUrlsMatch(idpContent,
+				spHeaderInfo.getResponseConsumerURL())) {
+
+			EcpHeaderInfo idpHeaderInfo = idpContent.getResponseHeaderInfo();
+
+			if (login.isVerbose()) {
+				System.out.println("Received from idp: \n"
+						+ new String(idpHeaderInfo.getMessage()));
+			}
+
+			if (logger.isDebugEnabled()) {
+				logger.debug("Received from idp: \n"
+						+ new String(idpHeaderInfo.getMessage()));
+			}
+
+			// Splice the IdP Body into the PAOS response envelope.
+			byte[] message = EnvelopeCreator.createSpResponseEnvelope(
+					idpHeaderInfo, spHeaderInfo.getMessageID());
+
+			if (message != null) {
+				assertionContent.setRequestBytes(message);
+				return assertionContent;
+			}
+
+			EnvelopeParts idpParts = idpContent.getResponseParts();
+
+			if (idpParts != null) {
+				body = idpParts.getBody();
+			} else {
+				logger.debug("Returning a SOAP fault message to the endpoint.");
+				body = EnvelopeCreator
+						.createSoapFaultBody("The IdP response was not a valid SOAP Envelope.");
+			}
+		} else {
+			logger.debug("AssertionConsumerURLs from AuthnRequest and Response did not match.");
+			logger.debug("Returning a SOAP fault message to the endpoint.");
+			body = EnvelopeCreator
+					.createSoapFaultBody("AssertionConsumerURLs did not match.");
+		}
+
+		// Build the envelope you want to send.
+		assertionContent.setRequestEnvelope(EnvelopeCreator
+				.createSpResponseEnvelope(body));
+		return assertionContent;
+	}
+
+	/**
+	 * Forward the AuthnRequest from the SP to the IdP and return the
+	 * ExchangeContent with the IdP response.
+	 * 
+	 * @return
+	 */
+	private ExchangeContent getIdpResponse(ExchangeContent spContent,
+			IDPEntry idpEntry, PaosClient paosClient, LoginContext login) {
+
+		ExchangeContent idpContent = createIdpContent(spContent, idpEntry,
+				login);
+
+		if (idpContent == null)
+			return null;
+
+		// Fail at once if the IdP is known to be down.
+		CircuitBreaker breaker = circuitBreaker(idpEntry);
+
+		if (breaker != null && !breaker.allowRequest()) {
+			logger.info("The IdP " + breaker.getProviderID()
+					+ " is unavailable, not sending the AuthnRequest.");
+			return null;
+		}
+
+		long start = System.currentTimeMillis();
+
+		// Send everything to the IdP.
+		idpContent = paosClient.send(idpContent.getEndpointURL(), idpContent);
+
+		recordIdpResponse(breaker, idpContent, start);
+		cacheIdpSession(login.getOptions(), idpContent);
+		return idpContent;
+	}
+
+	/**
+	 * Return the circuit breaker of an IdP, keyed by its providerID, or by
+	 * its location if the entry has no providerID.
+	 * 
+	 * @param idpEntry
+	 * @return The breaker, or null if the IdP can not be identified.
+	 */
+	private CircuitBreaker circuitBreaker(IDPEntry idpEntry) {
+
+		if (idpEntry == null)
+			return null;
+
+		String key = idpEntry.getProviderID() != null ? idpEntry
+				.getProviderID() : idpEntry.getLoc();
+
+		return key == null ? null : CircuitBreaker.forIdp(key);
+	}
+
+	/**
+	 * Record the outcome of a request to the IdP in its circuit breaker. No
+	 * response or a 5xx response is a failure. Any other response, also a
+	 * refused login, shows that the IdP is up.
+	 * 
+	 * @param breaker
+	 *            Can be null.
+	 * @param idpContent
+	 *            The IdP response.
+	 * @param start
+	 *            When the request was sent.
+	 */
+	private void recordIdpResponse(CircuitBreaker breaker,
+			ExchangeContent idpContent, long start) {
+
+		if (breaker == null)
+			return;
+
+		// A request that the client itself did not send says nothing about
+		// the IdP, but it must give back its probe slot.
+		if (idpContent != null
+				&& idpContent.getFailureCause() == RetryPolicy.Cause.REJECTED) {
+			breaker.releaseProbe();
+			return;
+		}
+
+		int status = idpContent == null ? -1 : idpContent.getResponseStatus();
+
+		if (status == -1 || status >= 500)
+			breaker.recordFailure();
+		else
+			breaker.recordSuccess(System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Create the ExchangeContent with the AuthnRequest that will be sent to
+	 * the IdP, with the IdP endpoint URL and the login credentials set.
+	 * Returns null if the SP message can not be forwarded.
+	 * 
+	 * @param spContent
+	 * @param idpEntry
+	 * @param login
+	 * @return
+	 */
+	private ExchangeContent createIdpContent(ExchangeContent spContent,
+			IDPEntry idpEntry, LoginContext login) {
 
-		String spAssertionConsumerURL = "";
 		ExchangeContent idpContent = null;
-		Envelope idpEnvelope = null;
 		URL idpURL = null;
 
 		// Extract idplist from authnrequest and check if the SP supports
 		// the one that was chosen. If not, complain.
-		idpURL = determineIdP(spContent.getResponseParts().getHeader(),
-				idpEntry);
-
-		spAssertionConsumerURL = ExtractField
-				.extractAssertionConsumerURL(spContent.getResponseParts()
-						.getHeader());
+		idpURL = determineIdP(spContent.getResponseHeaderInfo()
+				.getIdpEntries(), idpEntry);
 
 		// If no matching idp was found from the list the SP sent...
 		if (idpURL == null) {
@@ -185,27 +999,52 @@ public class Connections {
 		}
 
 		// Create the envelope with the AuthnRequest that will be sent to the
-		// IdP
-		idpEnvelope = EnvelopeCreator.createIdpEnvelope(spContent
-				.getResponseParts());
-
-		// Get the Assertion from the IdP (send AuthnRequest to IdP)
-		idpContent = getAssertion(paosClient, idpEnvelope, idpURL, options);
-
-		// If the IdP sent back anything at all as a response:
-		if (idpContent != null) {
-			// Check assertionConsumerURL. If it does not match, send a SOAP
-			// fault to the SP/endpoint
-			if (consumerUrlsMatch(idpContent, spAssertionConsumerURL)) {
-				return idpContent.getResponseParts().getBody();
-			} else {
-				logger.debug("AssertionConsumerURLs from AuthnRequest and Response did not match.");
-				logger.debug("Returning a SOAP fault message to the endpoint.");
-				return EnvelopeCreator
-						.createSoapFaultBody("AssertionConsumerURLs did not match.");
+		// IdP. The SP Body is copied as it is, unless it can not be located
+		// in the SP message.
+		byte[] idpMessage = EnvelopeCreator.createIdpEnvelope(spContent
+				.getResponseHeaderInfo());
+
+		if (idpMessage != null) {
+			if (login.isVerbose()) {
+				System.out.println("Forwarding Authnrequest to "
+						+ idpURL.toString());
+				System.out.println(new String(idpMessage));
 			}
-		} // else the paosclient has complained about this.
-		return null;
+			idpContent = new ExchangeContent(null, null);
+			idpContent.setRequestBytes(idpMessage);
+		} else {
+			// Build the envelope from the parts of the SP message, which
+			// are only parsed and validated here.
+			EnvelopeParts spParts = spContent.getResponseParts();
+
+			if (spParts == null) {
+				logger.debug("The AuthnRequest of the SP is not a valid SOAP Envelope.");
+				return null;
+			}
+
+			Envelope idpEnvelope = EnvelopeCreator.createIdpEnvelope(spParts);
+			if (login.isVerbose()) {
+				System.out.println("Forwarding Authnrequest to "
+						+ idpURL.toString());
+				System.out.println(ParseHelper.anythingToXMLString(idpEnvelope));
+			}
+			idpContent = new ExchangeContent(idpEnvelope, null);
+		}
+
+		addCredentials(idpContent, idpURL, login.getOptions());
+		return login.forPhase(idpContent, LoginDeadline.Phase.IDP_REQUEST);
+	}
+
+	/**
+	 * Return the request envelope of an exchangeContent as a text string.
+	 * 
+	 * @param content
+	 * @return
+	 */
+	private String requestToString(ExchangeContent content) {
+		if (content.getRequestBytes() != null)
+			return new String(content.getRequestBytes());
+		return ParseHelper.anythingToXMLString(content.getRequestEnvelope());
 	}
 
 	/**
@@ -213,17 +1052,20 @@ public class Connections {
 	 * 
 	 * @param spURL
 	 * @param paosClient
+	 * @param login
 	 * @return
 	 */
-	private ExchangeContent getRequestToSP(URL spURL, PaosClient paosClient) {
+	private ExchangeContent getRequestToSP(URL spURL, PaosClient paosClient,
+			LoginContext login) {
 
 		// Create a new, empty SP ExchangeContent.
-		ExchangeContent spContent = new ExchangeContent(null, null);
+		ExchangeContent spContent = login.forPhase(new ExchangeContent(null,
+				null), LoginDeadline.Phase.SP_REQUEST);
 
 		// Send a PAOS GET request to the given SP endpoint.
 		spContent = paosClient.sendHttpGETRequest(spURL, spContent);
 
-		if (verbose) {
+		if (login.isVerbose() && spContent.getResponseParts() != null) {
 			System.out.println("AuthnRequest from SP: \n"
 					+ new String(ParseHelper.anythingToXMLString(spContent
 							.getResponseParts().getBody())));
@@ -245,23 +1087,56 @@ public class Connections {
 	public ExchangeContent getAssertion(PaosClient paosClient,
 			Envelope idpEnvelope, URL idpURL, ClientOptions options) {
 
-		ExchangeContent idpContent = null;
-
-		if (verbose) {
+		if (options.isVerbose()) {
 			System.out.println("Forwarding Authnrequest to "
 					+ idpURL.toString());
 			System.out.println(ParseHelper.anythingToXMLString(idpEnvelope));
 		}
 
-		String principal = options.getPrincipal();
-		String credentials = options.getCredentials();
-		
-		// Set the login credentials at IdP exchangecontent.
-		idpContent = new ExchangeContent(idpEnvelope, createRealmResolver(
-				principal, credentials));
+		return sendToIdP(paosClient, new ExchangeContent(idpEnvelope, null),
+				idpURL, options);
+	}
 
-		logger.debug("\nWill forward the request to: " + idpURL.toString()
-				+ "\n");
+	/**
+	 * Get an envelope with an assertion from the IdP. The envelope with the
+	 * AuthnRequest is already serialized and is sent as it is. If this
+	 * returns null, something went wrong between the IdP and Client.
+	 * 
+	 * @param paosClient
+	 * @param idpMessage
+	 *            The serialized envelope that contains the AuthnRequest.
+	 * @param idpURL
+	 * @param options
+	 * @return
+	 */
+	public ExchangeContent getAssertion(PaosClient paosClient,
+			byte[] idpMessage, URL idpURL, ClientOptions options) {
+
+		if (options.isVerbose()) {
+			System.out.println("Forwarding Authnrequest to "
+					+ idpURL.toString());
+			System.out.println(new String(idpMessage));
+		}
+
+		ExchangeContent idpContent = new ExchangeContent(null, null);
+		idpContent.setRequestBytes(idpMessage);
+
+		return sendToIdP(paosClient, idpContent, idpURL, options);
+	}
+
+	/**
+	 * Add the login credentials to the IdP exchangecontent and send it.
+	 * 
+	 * @param paosClient
+	 * @param idpContent
+	 * @param idpURL
+	 * @param options
+	 * @return
+	 */
+	private ExchangeContent sendToIdP(PaosClient paosClient,
+			ExchangeContent idpContent, URL idpURL, ClientOptions options) {
+
+		addCredentials(idpContent, idpURL, options);
 
 		// Send everything to the IdP.
 		idpContent = paosClient.send(idpURL, idpContent);
@@ -271,6 +1146,31 @@ public class Connections {
 		return idpContent;
 	}
 
+	/**
+	 * Set the login credentials and the endpoint URL at the IdP
+	 * exchangecontent.
+	 * 
+	 * @param idpContent
+	 * @param idpURL
+	 * @param options
+	 */
+	private void addCredentials(ExchangeContent idpContent, URL idpURL,
+			ClientOptions options) {
+
+		String principal = options.getPrincipal();
+		String credentials = options.getCredentials();
+		
+		// Set the login credentials at IdP exchangecontent.
+		idpContent.setRealmResolver(createRealmResolver(principal,
+				credentials));
+		idpContent.setPreemptiveAuthentication(options
+				.isPreemptiveAuthentication());
+		idpContent.setEndpointURL(idpURL);
+
+		logger.debug("\nWill forward the request to: " + idpURL.toString()
+				+ "\n");
+	}
+
 	/**
 	 * Read the list of supported IDPs that the SP sent and determine if the
 	 * chosen IdP is supported. Request = opensaml ECP request header.
@@ -290,18 +1190,32 @@ public class Connections {
 			}
 		}
 
+		if (idpList != null)
+			return determineIdP(idpList.getIDPEntrys(), idpEntry);
+		return null;
+	}
+
+	/**
+	 * Determine if the chosen IdP is in the list of supported IdPs that the
+	 * SP sent.
+	 * 
+	 * @param spIdpEntries
+	 *            IDPEntries from the ECP request header block.
+	 * @param idpEntry
+	 * @return
+	 */
+	public URL determineIdP(List<IDPEntry> spIdpEntries, IDPEntry idpEntry) {
+
 		// If the list from the SP contains the same entry that
 		// was chosen by the client...
-		if (idpList != null) {
-			for (IDPEntry spIdpEntry : idpList.getIDPEntrys()) {
-				if (spIdpEntry.getName() != null && spIdpEntry.getLoc() != null
-						&& idpEntry.getProviderID() != null)
-					if (spIdpEntry.getName().equals(idpEntry.getName()))
-						if (spIdpEntry.getLoc().equals(idpEntry.getLoc()))
-							if (spIdpEntry.getProviderID().equals(
-									idpEntry.getProviderID()))
-								return getURL(spIdpEntry.getLoc());
-			}
+		for (IDPEntry spIdpEntry : spIdpEntries) {
+			if (spIdpEntry.getName() != null && spIdpEntry.getLoc() != null
+					&& idpEntry.getProviderID() != null)
+				if (spIdpEntry.getName().equals(idpEntry.getName()))
+					if (spIdpEntry.getLoc().equals(idpEntry.getLoc()))
+						if (spIdpEntry.getProviderID().equals(
+								idpEntry.getProviderID()))
+							return getURL(spIdpEntry.getLoc());
 		}
 		return null;
 	}
@@ -317,13 +1231,15 @@ public class Connections {
 	// But not if the latest specs are followed.
 	private boolean consumerUrlsMatch(ExchangeContent idpContent,
 			String spAssertionConsumerURL) {
-		// if header != null ..
+		// The IdP response header values, null if no envelope was received.
+		EcpHeaderInfo idpHeaderInfo = idpContent.getResponseHeaderInfo();
 
-		if (idpContent.getResponseParts().getHeader() != null) {
-			// Extract the assertionConsumerURL from an IdP response header.
-			String idpAssertionConsumerURL = ExtractField
-					.extractAssertionConsumerURL(idpContent.getResponseParts()
-							.getHeader());
+		if (idpHeaderInfo != null
+				&& idpHeaderInfo.getAssertionConsumerServiceURL() != null
+				&& spAssertionConsumerURL != null) {
+			// The assertionConsumerURL from the IdP response header.
+			String idpAssertionConsumerURL = idpHeaderInfo
+					.getAssertionConsumerServiceURL();
 
 			if (idpAssertionConsumerURL.equals(spAssertionConsumerURL)
 					|| idpAssertionConsumerURL.endsWith(spAssertionConsumerURL))
@@ -335,7 +1251,8 @@ public class Connections {
 	/**
 	 * Returns a new RealmResolver with the given credentials set. These will be
 	 * added as an HTTP header field in the request that is sent to the IdP. The
-	 * returned RealmResolver will be set on the httpClient.
+	 * returned RealmResolver is only used for the exchanges of one login, it is
+	 * never set on the shared httpClient.
 	 * 
 	 * @param principal
 	 *            username
@@ -0,0 +1,338 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.simpleClient;
+
+import java.net.URL;
+
+import jettyClient.paosClient.ExchangeFuture;
+import jettyClient.paosClient.ExchangeListener;
+import jettyClient.paosClient.PaosClient;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * EcpHttpClientProvider owns the one Jetty HttpClient that all logins share.
+ * 
+ * The client is created and started the first time it is asked for, and
+ * keeps its connections to the SPs and IdPs open between logins, so a login
+ * does not have to open new TCP connections and do new TLS handshakes.
+ * Credentials are never set on the client, they are sent per exchange.
+ * 
+ * TLS sessions are cached per host and port, so a new connection to an SP or
+ * IdP resumes the session instead of doing a full handshake. warmUp() can be
+ * used to connect to the IdPs before the first login needs them.
+ * 
+ * The settings are read when the client is created. Call shutdown() to stop
+ * the client, it is also stopped when the JVM exits.
+ * 
+ * @author carolina
+ * 
+ */
+public class EcpHttpClientProvider {
+
+	// Get the client logger
+	private final static Logger logger = LoggerFactory
+			.getLogger(ClientConfiguration.logger);
+
+	private static volatile HttpClient client = null;
+	private static Thread shutdownHook = null;
+
+	/* The last failed start, and when the next start may be tried. */
+	private static Exception startFailure = null;
+	private static long startRetryAt = 0;
+
+	/* Settings, guarded by the class lock. */
+	private static int maxConnectionsPerAddress = ClientConfiguration.httpMaxConnectionsPerAddress;
+	private static int idleTimeout = ClientConfiguration.httpIdleTimeout;
+	private static long timeout = ClientConfiguration.httpTimeout;
+	private static int connectTimeout = ClientConfiguration.httpConnectTimeout;
+	private static int maxThreads = ClientConfiguration.httpMaxThreads;
+	private static SslContextFactory sslContextFactory = null;
+	private static int sslSessionCacheSize = ClientConfiguration.sslSessionCacheSize;
+	private static int sslSessionTimeout = ClientConfiguration.sslSessionTimeout;
+
+	/* JSSE property that enables TLS session tickets in the client. */
+	private static final String sessionTicketProperty = "jdk.tls.client.enableSessionTicketExtension";
+
+	static {
+		if (ClientConfiguration.sslSessionTickets)
+			setSessionTickets(true);
+	}
+
+	/**
+	 * Return the shared, started HttpClient. Creates and starts it if there
+	 * is none.
+	 * 
+	 * If the client can not be started, it is stopped again with its thread
+	 * pool. No new client is created until the connect timeout has passed,
+	 * the calls in between fail with the same cause.
+	 * 
+	 * @return
+	 * @throws IllegalStateException
+	 *             If the client could not be started.
+	 */
+	public static HttpClient getClient() {
+
+		HttpClient shared = client;
+		if (shared != null)
+			return shared;
+
+		synchronized (EcpHttpClientProvider.class) {
+			if (client == null) {
+				if (startFailure != null
+						&& System.currentTimeMillis() < startRetryAt)
+					throw new IllegalStateException(
+							"The shared client could not be started",
+							startFailure);
+
+				HttpClient created = createClient();
+
+				try {
+					created.start();
+				} catch (Exception e) {
+					logger.error("Could not start client: " + e.toString());
+					stop(created);
+					startFailure = e;
+					startRetryAt = System.currentTimeMillis() + connectTimeout;
+					throw new IllegalStateException(
+							"The shared client could not be started", e);
+				}
+
+				startFailure = null;
+				client = created;
+				addShutdownHook();
+				logger.debug("Shared client started");
+			}
+			return client;
+		}
+	}
+
+	/**
+	 * Stop the shared client. Open connections are closed, and the next call
+	 * to getClient() starts a new client.
+	 */
+	public static void shutdown() {
+
+		HttpClient stopped;
+
+		synchronized (EcpHttpClientProvider.class) {
+			stopped = client;
+			client = null;
+			startFailure = null;
+		}
+
+		if (stopped == null)
+			return;
+
+		if (stop(stopped))
+			logger.debug("Shared client stopped");
+	}
+
+	/**
+	 * Stop a client and its thread pool. Returns false if it could not be
+	 * stopped.
+	 * 
+	 * @param httpClient
+	 * @return
+	 */
+	private static boolean stop(HttpClient httpClient) {
+
+		try {
+			httpClient.stop();
+			// The pool is a bean of the client, make sure that its threads
+			// end even if the client failed half way.
+			if (httpClient.getThreadPool() instanceof LifeCycle)
+				((LifeCycle) httpClient.getThreadPool()).stop();
+			return true;
+		} catch (Exception e) {
+			logger.error("Could not stop client: " + e.toString());
+			return false;
+		}
+	}
+
+	/**
+	 * Connect to the given endpoints without waiting, so that the TCP
+	 * connections and TLS sessions are ready when a login needs them.
+	 * 
+	 * @param endpoints
+	 */
+	public static void warmUp(URL... endpoints) {
+
+		PaosClient paosClient;
+
+		try {
+			paosClient = new PaosClient(getClient());
+		} catch (IllegalStateException e) {
+			logger.debug("Not connecting, " + e.getMessage());
+			return;
+		}
+
+		for (final URL endpoint : endpoints) {
+			if (endpoint == null)
+				continue;
+
+			paosClient.preconnect(endpoint).addListener(
+					new ExchangeListener() {
+						public void onDone(ExchangeFuture future) {
+							if (future.getFailure() != null)
+								logger.debug("Could not connect to "
+										+ endpoint.getHost() + ": "
+										+ future.getFailure().toString());
+							else
+								logger.debug("Connected to "
+										+ endpoint.getHost());
+						}
+					});
+		}
+	}
+
+	/* Settings, used when the client is created. */
+
+	public static synchronized void setMaxConnectionsPerAddress(
+			int maxConnectionsPerAddress) {
+		EcpHttpClientProvider.maxConnectionsPerAddress = maxConnectionsPerAddress;
+	}
+
+	/**
+	 * How long an idle connection is kept open for the next request, in
+	 * milliseconds.
+	 * 
+	 * @param idleTimeout
+	 */
+	public static synchronized void setIdleTimeout(int idleTimeout) {
+		EcpHttpClientProvider.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * How long an exchange may take before it expires, in milliseconds.
+	 * 
+	 * @param timeout
+	 */
+	public static synchronized void setTimeout(long timeout) {
+		EcpHttpClientProvider.timeout = timeout;
+	}
+
+	/**
+	 * How long opening a connection may take, in milliseconds.
+	 * 
+	 * @param connectTimeout
+	 */
+	public static synchronized void setConnectTimeout(int connectTimeout) {
+		EcpHttpClientProvider.connectTimeout = connectTimeout;
+	}
+
+	public static synchronized void setMaxThreads(int maxThreads) {
+		EcpHttpClientProvider.maxThreads = maxThreads;
+	}
+
+	/**
+	 * Use a configured SslContextFactory (key store, trust store, protocols)
+	 * instead of the default one. Session caching is enabled on it.
+	 * 
+	 * @param sslContextFactory
+	 */
+	public static synchronized void setSslContextFactory(
+			SslContextFactory sslContextFactory) {
+		EcpHttpClientProvider.sslContextFactory = sslContextFactory;
+	}
+
+	/**
+	 * The number of TLS sessions that are kept for resumption.
+	 * 
+	 * @param sslSessionCacheSize
+	 */
+	public static synchronized void setSslSessionCacheSize(
+			int sslSessionCacheSize) {
+		EcpHttpClientProvider.sslSessionCacheSize = sslSessionCacheSize;
+	}
+
+	/**
+	 * How long a cached TLS session can be resumed, in seconds.
+	 * 
+	 * @param sslSessionTimeout
+	 */
+	public static synchronized void setSslSessionTimeout(int sslSessionTimeout) {
+		EcpHttpClientProvider.sslSessionTimeout = sslSessionTimeout;
+	}
+
+	/**
+	 * Enable or disable TLS session tickets (RFC 5077) in the client. Sets
+	 * the JSSE system property, which is read when the first SSLContext is
+	 * created, so it must be called before any TLS connection is made. Has
+	 * no effect on JREs that do not support client session tickets.
+	 * 
+	 * @param enabled
+	 */
+	public static void setSessionTickets(boolean enabled) {
+		System.setProperty(sessionTicketProperty, Boolean.toString(enabled));
+	}
+
+	/**
+	 * Create and configure a Jetty Httpclient. Called with the class lock
+	 * held.
+	 * 
+	 * @return A HttpClient
+	 */
+	private static HttpClient createClient() {
+
+		QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads);
+		threadPool.setName("ecp-client");
+		threadPool.setDaemon(true);
+
+		HttpClient created = sslContextFactory != null ? new HttpClient(
+				sslContextFactory) : new HttpClient();
+		created.setThreadPool(threadPool);
+		created.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+		created.setMaxConnectionsPerAddress(maxConnectionsPerAddress);
+		created.setIdleTimeout(idleTimeout);
+		created.setTimeout(timeout); // STATUS_EXPIRED
+		created.setConnectTimeout(connectTimeout);
+
+		// Resume TLS sessions. Jetty creates the SSLEngine with the peer host
+		// and port when caching is enabled, which JSSE needs to find the
+		// session.
+		SslContextFactory ssl = created.getSslContextFactory();
+		ssl.setSessionCachingEnabled(true);
+		ssl.setSslSessionCacheSize(sslSessionCacheSize);
+		ssl.setSslSessionTimeout(sslSessionTimeout);
+
+		return created;
+	}
+
+	/**
+	 * Stop the shared client when the JVM exits. Called with the class lock
+	 * held.
+	 */
+	private static void addShutdownHook() {
+
+		if (shutdownHook != null)
+			return;
+
+		shutdownHook = new Thread("ecp-client-shutdown") {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+}
@@ -0,0 +1,113 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.simpleClient;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ExpiringCache is a bounded map whose entries expire at a given time. When
+ * it is full the least recently used entry is evicted, and an expired entry
+ * is removed when it is asked for.
+ *
+ * It is the storage of SessionCache and AssertionCache. All methods are
+ * synchronized.
+ *
+ * @author carolina
+ *
+ * @param <V>
+ *            The type of the cached values.
+ */
+class ExpiringCache<V> {
+
+	private final int maxEntries;
+
+	/* Access ordered, guarded by this */
+	private final LinkedHashMap<String, Entry<V>> entries;
+
+	/**
+	 * @param maxEntries
+	 *            Maximum number of entries.
+	 */
+	ExpiringCache(final int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, Entry<V>> eldest) {
+				return size() > ExpiringCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Return the value of a key, or null if there is none or it has expired.
+	 *
+	 * @param key
+	 * @return
+	 */
+	synchronized V get(String key) {
+
+		Entry<V> entry = entries.get(key);
+
+		if (entry == null)
+			return null;
+
+		if (entry.expires <= System.currentTimeMillis()) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.value;
+	}
+
+	/**
+	 * Cache a value until a time, replacing the value of the key.
+	 *
+	 * @param key
+	 * @param value
+	 * @param expires
+	 *            Expiry time in milliseconds.
+	 */
+	synchronized void put(String key, V value, long expires) {
+		entries.put(key, new Entry<V>(value, expires));
+	}
+
+	synchronized void remove(String key) {
+		entries.remove(key);
+	}
+
+	synchronized void clear() {
+		entries.clear();
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	private static class Entry<V> {
+
+		private final V value;
+		private final long expires;
+
+		private Entry(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.simpleClient;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jettyClient.paosClient.ExchangeContent;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.opensaml.saml2.core.IDPEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * LoginCoalescer lets only one login per principal and SP acquire a session
+ * at a time. The first caller does the login, and callers with the same
+ * principal, credentials and SP origin wait until it is done.
+ *
+ * Only the session is shared, through the SessionCache: a waiting caller
+ * then does its own login, which copies the cached cookies into its own
+ * cookie store and sends its own request for its own URL. If the first
+ * login did not get a session, one of the waiting callers does the next
+ * login and the others wait for it in turn. A caller's wait counts against
+ * its own login budget.
+ *
+ * Logins without a principal, or with session reuse off, are not
+ * coalesced.
+ *
+ * @author carolina
+ *
+ */
+public class LoginCoalescer {
+
+	// Get the client logger
+	private final static Logger logger = LoggerFactory
+			.getLogger(ClientConfiguration.logger);
+
+	private static final LoginCoalescer shared = new LoginCoalescer();
+
+	/* Running logins, counted down when done */
+	private final ConcurrentHashMap<String, CountDownLatch> inFlight = new ConcurrentHashMap<String, CountDownLatch>();
+
+	/**
+	 * The coalescer that all logins share.
+	 *
+	 * @return
+	 */
+	public static LoginCoalescer getShared() {
+		return shared;
+	}
+
+	/**
+	 * Access some resource at a SP. If a login of the same principal to the
+	 * same SP is already running, wait for it first, so that the session it
+	 * gets is used.
+	 *
+	 * @param options
+	 * @param idpEntry
+	 * @param httpClient
+	 * @return The same ExchangeContent as Connections.accessResource()
+	 *         returns, or null if the running logins took longer than the
+	 *         login budget.
+	 */
+	public ExchangeContent accessResource(ClientOptions options,
+			IDPEntry idpEntry, HttpClient httpClient) {
+
+		if (options.getPrincipal() == null || options.getSpURL() == null
+				|| !options.isReuseSessions())
+			return new Connections().accessResource(options, idpEntry,
+					httpClient);
+
+		// The budget starts now, the waits are part of it.
+		LoginContext login = new LoginContext(options);
+
+		// The key of the SP session in the SessionCache.
+		String key = SessionCache.key(options.getPrincipal(),
+				options.getCredentials(), options.getSpURL());
+		CountDownLatch flight = new CountDownLatch(1);
+		CountDownLatch running;
+
+		while ((running = inFlight.putIfAbsent(key, flight)) != null) {
+			if (!await(running, login))
+				return null;
+
+			// The session of the login that was waited for.
+			if (SessionCache.getShared().contains(options.getPrincipal(),
+					options.getCredentials(), options.getSpURL()))
+				return new Connections().accessResource(login, idpEntry,
+						httpClient);
+		}
+
+		try {
+			return new Connections().accessResource(login, idpEntry,
+					httpClient);
+		} finally {
+			inFlight.remove(key, flight);
+			flight.countDown();
+		}
+	}
+
+	/**
+	 * Return the number of logins that are running.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return inFlight.size();
+	}
+
+	/**
+	 * Wait for a running login. A caller waits no longer than what is left
+	 * of its own login budget. Returns false if the login did not end in
+	 * time.
+	 */
+	private boolean await(CountDownLatch running, LoginContext login) {
+
+		ClientOptions options = login.getOptions();
+
+		logger.debug("Waiting for the running login of "
+				+ options.getPrincipal() + " to " + options.getSpURL().getHost()
+				+ ".");
+
+		try {
+			long remaining = login.getDeadline().remaining();
+			if (remaining < 0) {
+				running.await();
+				return true;
+			}
+			if (remaining > 0
+					&& running.await(remaining, TimeUnit.MILLISECONDS))
+				return true;
+
+			logger.info("The running login of " + options.getPrincipal()
+					+ " took too long.");
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.debug("Interrupted while waiting for the login of "
+					+ options.getPrincipal() + ".");
+			return false;
+		}
+	}
+}
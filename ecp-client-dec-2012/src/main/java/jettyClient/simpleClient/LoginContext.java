@@ -0,0 +1,102 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.simpleClient;
+
+import jettyClient.paosClient.ExchangeContent;
+import jettyClient.paosClient.RetryPolicy;
+
+/**
+ * LoginContext is the state of one login: its options, its time budget and
+ * whether it prints what it sends. A Connections object can run several
+ * logins at once, so each login passes its own context from exchange to
+ * exchange instead of keeping it in Connections.
+ *
+ * The context also sets the deadline and the retry policy of each phase on
+ * the exchanges of the login.
+ *
+ * @author carolina
+ *
+ */
+class LoginContext {
+
+	private final ClientOptions options;
+	private final LoginDeadline deadline;
+	private final boolean verbose;
+
+	/**
+	 * Start a login with the given options. The budget of the login starts
+	 * now.
+	 *
+	 * @param options
+	 */
+	LoginContext(ClientOptions options) {
+		this.options = options;
+		this.deadline = new LoginDeadline(options);
+		this.verbose = options.isVerbose();
+	}
+
+	ClientOptions getOptions() {
+		return options;
+	}
+
+	LoginDeadline getDeadline() {
+		return deadline;
+	}
+
+	boolean isVerbose() {
+		return verbose;
+	}
+
+	/**
+	 * Set the deadline and the retry policy of a login phase on the content.
+	 * The POST to the assertion consumer is not replayable.
+	 *
+	 * @param content
+	 * @param phase
+	 * @return The content.
+	 */
+	ExchangeContent forPhase(ExchangeContent content, LoginDeadline.Phase phase) {
+		deadline.apply(content, phase);
+		content.setRetryPolicy(options.getRetryPolicy(phase));
+		content.setReplayable(phase != LoginDeadline.Phase.ACS_REQUEST);
+		return content;
+	}
+
+	/**
+	 * Return how long to wait before a new ECP flow is started, because the
+	 * POST to the assertion consumer failed, or -1 if none is started.
+	 *
+	 * @param assertionContent
+	 *            The SP response to the IdP response, or null.
+	 * @param flows
+	 *            How many new flows have been started.
+	 * @return
+	 */
+	long newFlowDelay(ExchangeContent assertionContent, int flows) {
+
+		RetryPolicy retryPolicy = options
+				.getRetryPolicy(LoginDeadline.Phase.ACS_REQUEST);
+
+		if (retryPolicy == null || assertionContent == null
+				|| assertionContent.getFailureCause() == null)
+			return -1;
+
+		// A new flow sends a new assertion, so it can always be sent.
+		return retryPolicy.retryDelay(assertionContent.getFailureCause(),
+				flows, true, deadline.getEnd());
+	}
+}
@@ -0,0 +1,134 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.simpleClient;
+
+import jettyClient.paosClient.ExchangeContent;
+
+/**
+ * LoginDeadline is the time budget of one login. Every phase (the GET to
+ * the SP, the POST to the IdP and the POST to the SP's assertion consumer)
+ * has its own timeout, and the login as a whole has a budget. A phase gets
+ * its own timeout or what is left of the budget, whichever is less, so a
+ * slow phase leaves less time to the phases after it.
+ *
+ * The deadline of a phase is set on the ExchangeContent, and PaosClient
+ * makes the exchange expire at that time.
+ *
+ * @author carolina
+ *
+ */
+public class LoginDeadline {
+
+	/**
+	 * The exchanges of a login.
+	 */
+	public enum Phase {
+		SP_REQUEST, IDP_REQUEST, ACS_REQUEST
+	}
+
+	private final long end; // 0 = no budget
+	private final long spTimeout;
+	private final long idpTimeout;
+	private final long acsTimeout;
+
+	/**
+	 * Start the budget of a login with the timeouts of the options. A
+	 * timeout of 0 means no limit.
+	 *
+	 * @param options
+	 */
+	public LoginDeadline(ClientOptions options) {
+		long budget = options.getLoginTimeout();
+		this.end = budget > 0 ? System.currentTimeMillis() + budget : 0;
+		this.spTimeout = options.getSpTimeout();
+		this.idpTimeout = options.getIdpTimeout();
+		this.acsTimeout = options.getAcsTimeout();
+	}
+
+	/**
+	 * Return the time a phase that starts now must be done by, in
+	 * milliseconds, or 0 if it has no limit.
+	 *
+	 * @param phase
+	 * @return
+	 */
+	public long deadlineFor(Phase phase) {
+
+		long timeout = timeout(phase);
+		long phaseEnd = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+
+		if (end == 0)
+			return phaseEnd;
+		if (phaseEnd == 0)
+			return end;
+		return Math.min(phaseEnd, end);
+	}
+
+	/**
+	 * Set the deadline of a phase that starts now on the content.
+	 *
+	 * @param content
+	 * @param phase
+	 * @return The content.
+	 */
+	public ExchangeContent apply(ExchangeContent content, Phase phase) {
+		content.setDeadline(deadlineFor(phase));
+		return content;
+	}
+
+	/**
+	 * Return the time the login must be done by, in milliseconds, or 0 if it
+	 * has no budget.
+	 *
+	 * @return
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	/**
+	 * Return true if the budget of the login has been used up.
+	 *
+	 * @return
+	 */
+	public boolean isExpired() {
+		return end != 0 && System.currentTimeMillis() >= end;
+	}
+
+	/**
+	 * Return what is left of the budget in milliseconds, or -1 if there is
+	 * no budget.
+	 *
+	 * @return
+	 */
+	public long remaining() {
+		if (end == 0)
+			return -1;
+		return Math.max(0, end - System.currentTimeMillis());
+	}
+
+	private long timeout(Phase phase) {
+		switch (phase) {
+		case SP_REQUEST:
+			return spTimeout;
+		case IDP_REQUEST:
+			return idpTimeout;
+		default:
+			return acsTimeout;
+		}
+	}
+}
@@ -22,6 +22,7 @@ import java.util.Iterator;
 
 import jettyClient.metadata.IdpMetadata;
 import jettyClient.objectProviderRegisterer.ObjectProviderRegisterer;
+import jettyClient.parser.SchemaRegistry;
 
 import org.opensaml.DefaultBootstrap;
 import org.opensaml.saml2.core.IDPEntry;
@@ -64,12 +65,24 @@ public class Main {
 		// Register PAOS request header builder + marshaller.
 		ObjectProviderRegisterer.register();
 
+		// Compile the schemas once, before any message is validated.
+		SchemaRegistry.warm();
+
 		// Load metadata (load it from a folder that contains metadata xml)
 		IdpMetadata metadata = new IdpMetadata();
 
 		// Parse command line parameters into configuration info
 		ClientOptions options = Parameters.setOptions(args);
 		
+		// Connect to the chosen IdP while the user is typing, so that the
+		// TLS session is ready when the AuthnRequest is forwarded.
+		if (options != null && options.getIdpID() != null) {
+			IDPEntry chosenIdp = metadata.getIdpList().get(options.getIdpID());
+			if (chosenIdp != null)
+				EcpHttpClientProvider.warmUp(Parameters.getURL(chosenIdp
+						.getLoc()));
+		}
+		
 		// ------- LOGIN -----------
 		// Ask the user for login information. Does not work in
 		// an IDE.
@@ -107,6 +120,10 @@ public class Main {
 
 				idpURL = Parameters.getURL(idpEntry.getLoc()); // :(
 				spURL = options.getSpURL();
+				options.setIdpUrl(idpURL);
+
+				if (metadata.isPreemptiveAuthentication(idpId))
+					options.setPreemptiveAuthentication(true);
 
 				// If both endpoints are ok, which they should be, send a
 				// request.
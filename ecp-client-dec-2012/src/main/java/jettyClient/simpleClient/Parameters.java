@@ -47,6 +47,8 @@ public class Parameters {
 	private static String spEndpoint = "endpoint";
 	private static String principal = "principal";
 	private static String credentials = "credentials";
+	private static String preconnect = "preconnect";
+	private static String preemptive = "preemptive";
 
 	// Defines the command for starting the client.
 	private static String usage = "java -jar client.jar <SP endpoint> [options]";
@@ -193,6 +195,18 @@ public class Parameters {
 			logger.debug("Verbose mode activated.");
 		}
 
+		// Preconnect
+		if (line.hasOption(preconnect)) {
+			options.setPreconnect(true);
+			logger.debug("Will connect to the IdP during the SP request.");
+		}
+
+		// Preemptive authentication
+		if (line.hasOption(preemptive)) {
+			options.setPreemptiveAuthentication(true);
+			logger.debug("Will send the credentials with the AuthnRequest.");
+		}
+
 		// SP Endpoint
 		if (line.hasOption(spEndpoint)) {
 			String endpointValue = line.getOptionValue(spEndpoint);
@@ -228,6 +242,10 @@ public class Parameters {
 		options.addOption("v", verbose, false,
 				"Prints the messages sent between the client, SP and IdP.");
 		options.addOption("h", help, false, "Prints a help message.");
+		options.addOption(preconnect, false,
+				"Connects to the IdP while the SP request is in flight.");
+		options.addOption(preemptive, false,
+				"Sends the credentials to the IdP without waiting for a challenge.");
 
 		return options;
 	}
@@ -0,0 +1,231 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.simpleClient;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import jettyClient.paosClient.CookieStore;
+
+/**
+ * SessionCache keeps the cookies of a completed login, keyed by the
+ * principal, a fingerprint of its credentials and the origin of a provider,
+ * so that the next login of the same principal can use the session instead
+ * of authenticating again. A caller that does not know the password does not
+ * get the session.
+ *
+ * The cache keeps its own copy of the cookies, and restore() copies them
+ * into the cookie store of a login, so no two logins share a store.
+ *
+ * There are two shared caches. getShared() holds SP sessions: the next login
+ * to the same SP can skip ECP. getIdpShared() holds IdP sessions: the next
+ * login to another SP sends the IdP session cookies with the AuthnRequest,
+ * and the IdP does not have to check the password again.
+ *
+ * An entry expires after a time to live, or when the first session cookie
+ * of the provider expires, whichever comes first. When the cache is full the
+ * least recently used entry is evicted.
+ *
+ * A cached session is only a guess: the provider can have ended it. The SP
+ * answers with a PAOS request and the IdP with an authentication challenge,
+ * and the caller falls back to a full login.
+ *
+ * @author carolina
+ *
+ */
+public class SessionCache {
+
+	private static final SessionCache shared = new SessionCache(
+			ClientConfiguration.sessionCacheSize,
+			ClientConfiguration.sessionCacheTtl);
+
+	private static final SessionCache idpShared = new SessionCache(
+			ClientConfiguration.sessionCacheSize,
+			ClientConfiguration.idpSessionCacheTtl);
+
+	/* Salt of the credential fingerprints, new for every run */
+	private static final byte[] salt = new byte[16];
+
+	static {
+		new SecureRandom().nextBytes(salt);
+	}
+
+	private final long ttl;
+
+	/* Cached copies of the cookies */
+	private final ExpiringCache<CookieStore> entries;
+
+	/**
+	 * @param maxEntries
+	 *            Maximum number of cached sessions.
+	 * @param ttl
+	 *            Time to live of a cached session, in milliseconds.
+	 */
+	public SessionCache(int maxEntries, long ttl) {
+		this.ttl = ttl;
+		this.entries = new ExpiringCache<CookieStore>(maxEntries);
+	}
+
+	/**
+	 * The SP session cache that all logins share.
+	 *
+	 * @return
+	 */
+	public static SessionCache getShared() {
+		return shared;
+	}
+
+	/**
+	 * The IdP session cache that all logins share.
+	 *
+	 * @return
+	 */
+	public static SessionCache getIdpShared() {
+		return idpShared;
+	}
+
+	/**
+	 * Copy the cookies of a cached session into the cookie store of a login.
+	 * Returns false if there is no session, or it has expired.
+	 *
+	 * @param principal
+	 * @param credentials
+	 * @param url
+	 *            Any URL of the provider.
+	 * @param cookieStore
+	 *            The cookie store of the login.
+	 * @return
+	 */
+	public boolean restore(String principal, String credentials, URL url,
+			CookieStore cookieStore) {
+
+		CookieStore cached = entries.get(key(principal, credentials, url));
+
+		if (cached == null)
+			return false;
+
+		// The cached store is never changed, it can be read unlocked.
+		cookieStore.addAll(cached);
+		return true;
+	}
+
+	/**
+	 * Return true if a session is cached for the principal at the provider,
+	 * and it has not expired.
+	 *
+	 * @param principal
+	 * @param credentials
+	 * @param url
+	 *            Any URL of the provider.
+	 * @return
+	 */
+	public boolean contains(String principal, String credentials, URL url) {
+		return entries.get(key(principal, credentials, url)) != null;
+	}
+
+	/**
+	 * Cache a copy of the cookies of a login that are sent to the provider.
+	 * The cookies of other hosts in the store are not cached. Nothing is
+	 * cached if the store has no cookies for the provider.
+	 *
+	 * @param principal
+	 * @param credentials
+	 * @param url
+	 *            Any URL of the provider.
+	 * @param cookieStore
+	 *            The cookie store of the login, it is not kept.
+	 */
+	public void put(String principal, String credentials, URL url,
+			CookieStore cookieStore) {
+
+		long expires = System.currentTimeMillis() + ttl;
+		long cookieExpiry = cookieStore.getEarliestExpiry(url.getHost());
+
+		if (cookieExpiry == -1)
+			return;
+
+		if (cookieExpiry < expires)
+			expires = cookieExpiry;
+
+		entries.put(key(principal, credentials, url),
+				cookieStore.copy(url.getHost()), expires);
+	}
+
+	/**
+	 * Remove a cached session, after the provider has ended it.
+	 *
+	 * @param principal
+	 * @param credentials
+	 * @param url
+	 */
+	public void invalidate(String principal, String credentials, URL url) {
+		entries.remove(key(principal, credentials, url));
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Return a salted SHA-256 fingerprint of a principal and its
+	 * credentials, so that cache keys tell logins with different passwords
+	 * apart without keeping the password.
+	 *
+	 * @param principal
+	 * @param credentials
+	 *            Can be null.
+	 * @return
+	 */
+	static String fingerprint(String principal, String credentials) {
+
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(salt);
+			digest.update(principal.getBytes("UTF-8"));
+			digest.update((byte) 0);
+			if (credentials != null)
+				digest.update(credentials.getBytes("UTF-8"));
+
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest())
+				hex.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-256 is always supported.
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * fingerprint + provider origin (scheme, host and port).
+	 */
+	static String key(String principal, String credentials, URL url) {
+		int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		return fingerprint(principal, credentials) + " " + url.getProtocol()
+				+ "://" + url.getHost().toLowerCase() + ":" + port;
+	}
+}
@@ -8,15 +8,19 @@ import java.net.URLEncoder;
 import java.security.PrivateKey;
 
 import jettyClient.objectProviderRegisterer.ObjectProviderRegisterer;
+import jettyClient.paosClient.CookieStore;
 import jettyClient.paosClient.ExchangeContent;
 import jettyClient.paosClient.PaosClient;
 import jettyClient.parser.ParseHelper;
+import jettyClient.parser.SchemaRegistry;
 import jettyClient.simpleClient.ClientExchange;
 import jettyClient.simpleClient.ClientOptions;
 import jettyClient.simpleClient.Connections;
+import jettyClient.simpleClient.EcpHttpClientProvider;
 
 import org.bouncycastle.openssl.PEMWriter;
 import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.security.Realm;
 import org.eclipse.jetty.http.HttpHeaders;
 import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.opensaml.DefaultBootstrap;
@@ -43,6 +47,9 @@ public class CertificateFetcher extends PaosClient {
 
 		// Register PAOS request header builder + marshaller.
 		ObjectProviderRegisterer.register();
+
+		// Compile the schemas once, before any message is validated.
+		SchemaRegistry.warm();
 	}
 
 	/**
@@ -54,14 +61,17 @@ public class CertificateFetcher extends PaosClient {
 	 * Default constructor uses the default httpclient
 	 */
 	public CertificateFetcher() {
-		super(null);
-		this.httpClient = getClient();
+		super(EcpHttpClientProvider.getClient());
 	}
 	
 	public CertificateFetcher(HttpClient httpClient) {
 		super(httpClient);
 	}
 	
+	public CertificateFetcher(HttpClient httpClient, CookieStore cookieStore) {
+		super(httpClient, cookieStore);
+	}
+	
 	/**
 	 * Authenticate with the given identity provider using the username/password
 	 * @param idpUrl
@@ -81,15 +91,8 @@ public class CertificateFetcher extends PaosClient {
 		IDPEntry idpEntry = (IDPEntry) ParseHelper.buildObject(IDPEntry.DEFAULT_ELEMENT_NAME);
 		idpEntry.setLoc(idpUrl);
 		
-		// set up the client
-		HttpClient httpClient = getClient();
-		try {
-			httpClient.start();
-		} catch (Exception e) {
-			System.out.println("Could not start client.");
-			e.printStackTrace();
-		}
-		System.out.println("Client started");
+		// use the shared client, started and with warm connections
+		HttpClient httpClient = EcpHttpClientProvider.getClient();
 
 		// If there is an IdP
 		if (idpEntry != null) {
@@ -115,21 +118,6 @@ public class CertificateFetcher extends PaosClient {
 	public void setSkin(String skin) {
 		this.skin = skin;
 	}
-
-	/**
-	 * Create and configure a Jetty Httpclient.
-	 * 
-	 * @return A HttpClient
-	 */
-	private HttpClient getClient() {
-
-		HttpClient client = new HttpClient();
-		client.setIdleTimeout(1000);
-		client.setTimeout(100000); // STATUS_EXPIRED
-		client.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
-
-		return client;
-	}
 	
 	/**
 	 * Retrieve the PEM certificate from the SP
@@ -171,7 +159,7 @@ public class CertificateFetcher extends PaosClient {
 		URL spURL = options.getSpURL();
 		//URL debugSpURL = Connections.getURL("https://ecp.cilogon.org/secure/env3.php");
 		//spURL = debugSpURL;
-		CertificateFetcher certFetcher = new CertificateFetcher(httpClient);
+		CertificateFetcher certFetcher = new CertificateFetcher(httpClient, options.getCookieStore());
 		String resultString = certFetcher.sendPOST(spURL, certContent, queryString.toString(), csrfValue);
 		//System.out.println(resultString);
 		
@@ -208,6 +196,58 @@ public class CertificateFetcher extends PaosClient {
 
 		String results = null;
 		
+		// Send exchange
+		ClientExchange clientExchange = exchangeContent(httpClient,
+				createPOSTExchange(endpoint, content, paramString, csrfValue,
+						null));
+
+		// If the endpoint asked for credentials, send the POST again with
+		// the credentials on the exchange.
+		if (clientExchange != null) {
+			Realm realm = challengedRealm(clientExchange,
+					content.getRealmResolver());
+
+			if (realm != null) {
+				storeCookies(clientExchange);
+				clientExchange = exchangeContent(httpClient,
+						createPOSTExchange(endpoint, content, paramString,
+								csrfValue, realm));
+			}
+		}
+
+		// exchangeContent() will return null when something fails.
+		if (clientExchange != null) {
+			
+			storeCookies(clientExchange);
+			
+			try {
+				results = clientExchange.getResponseContent();
+			} catch (UnsupportedEncodingException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			}
+
+		} else {
+			System.out.println("Could not send envelope.");
+		}
+		return results;
+	}
+	
+	/**
+	 * Create a POST exchange with the parameter string and the cookies of
+	 * the content, and the credentials of the realm if one is given.
+	 * 
+	 * @param endpoint
+	 * @param content
+	 * @param paramString
+	 * @param csrfValue
+	 * @param realm
+	 * @return
+	 */
+	private ClientExchange createPOSTExchange(URL endpoint,
+			ExchangeContent content, String paramString, String csrfValue,
+			Realm realm) {
+
 		// Create a new POST exchange.
 		ClientExchange clientExchange = getPOSTExchange(endpoint);
 		
@@ -219,8 +259,15 @@ public class CertificateFetcher extends PaosClient {
 		System.out.println("\nSent to " + clientExchange.getAddress().getHost()
 				+ clientExchange.getRequestURI() + "\n" + paramString);
 
-		// Add the cookie to the Exchange (if there is one)
-		if (!content.getCookieField().equals("")) {
+		// Add the session cookies from the cookie store, and the csrf cookie
+		if (cookieStore != null) {
+			String cookies = cookieStore.getCookieHeader(endpoint.getHost(), clientExchange.getRequestURI(), true);
+			String csrCookie = "CSRF=" + csrfValue;
+			
+			clientExchange.setRequestHeader(HttpHeaders.COOKIE, cookies == null ? csrCookie : cookies + "; " + csrCookie);
+			
+		} else if (!content.getCookieField().equals("")) {
+			// Add the cookie to the Exchange (if there is one)
 			// the shibboleth cookie needs to be added
 			String shibCookie = content.getCookieField() + ";";
 
@@ -232,27 +279,10 @@ public class CertificateFetcher extends PaosClient {
 
 		}
 
-		// Set realmResolver if there is one to set.
-		if (content.getRealmResolver() != null)
-			httpClient.setRealmResolver(content.getRealmResolver());
+		// Add the credentials to this exchange only.
+		setCredentials(clientExchange, realm);
 
-		// Send exchange
-		clientExchange = exchangeContent(httpClient, clientExchange);
-
-		// exchangeContent() will return null when something fails.
-		if (clientExchange != null) {
-			
-			try {
-				results = clientExchange.getResponseContent();
-			} catch (UnsupportedEncodingException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-
-		} else {
-			System.out.println("Could not send envelope.");
-		}
-		return results;
+		return clientExchange;
 	}
 	
 	public static void main(String[] args) {
@@ -0,0 +1,111 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.metadata;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import jettyClient.metadata.CircuitBreaker.State;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests of the states and the probes of CircuitBreaker.
+ *
+ * @author carolina
+ *
+ */
+public class CircuitBreakerTest {
+
+	private static final long OPEN_TIME = 20;
+
+	/**
+	 * A breaker that opens after two failures and lets one probe through.
+	 */
+	private CircuitBreaker halfOpen() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker("idp", 2, OPEN_TIME, 0, 1);
+		breaker.recordFailure();
+		breaker.recordFailure();
+		Thread.sleep(OPEN_TIME + 10);
+		return breaker;
+	}
+
+	@Test
+	public void opensAfterFailuresInARow() {
+		CircuitBreaker breaker = new CircuitBreaker("idp", 2, 60000, 0, 1);
+		breaker.recordFailure();
+		assertEquals(breaker.getState(), State.CLOSED);
+		breaker.recordFailure();
+
+		assertEquals(breaker.getState(), State.OPEN);
+		assertFalse(breaker.allowRequest());
+		assertEquals(breaker.getRejected(), 1L);
+	}
+
+	@Test
+	public void successfulProbeCloses() throws InterruptedException {
+		CircuitBreaker breaker = halfOpen();
+
+		assertTrue(breaker.allowRequest());
+		assertEquals(breaker.getState(), State.HALF_OPEN);
+		assertFalse(breaker.allowRequest());
+
+		breaker.recordSuccess(1);
+		assertEquals(breaker.getState(), State.CLOSED);
+	}
+
+	@Test
+	public void failedProbeOpensAgain() throws InterruptedException {
+		CircuitBreaker breaker = halfOpen();
+
+		assertTrue(breaker.allowRequest());
+		breaker.recordFailure();
+		assertEquals(breaker.getState(), State.OPEN);
+	}
+
+	@Test
+	public void releasedProbeLetsTheNextOneThrough()
+			throws InterruptedException {
+		CircuitBreaker breaker = halfOpen();
+
+		assertTrue(breaker.allowRequest());
+		assertFalse(breaker.allowRequest());
+
+		// The probe was not sent, its slot is free again.
+		breaker.releaseProbe();
+		assertTrue(breaker.allowRequest());
+		assertEquals(breaker.getState(), State.HALF_OPEN);
+	}
+
+	@Test
+	public void releaseProbeWhenClosedDoesNothing() {
+		CircuitBreaker breaker = new CircuitBreaker("idp", 2, 60000, 0, 1);
+		breaker.releaseProbe();
+
+		assertEquals(breaker.getState(), State.CLOSED);
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void slowResponseIsAFailure() {
+		CircuitBreaker breaker = new CircuitBreaker("idp", 1, 60000, 100, 1);
+		breaker.recordSuccess(500);
+
+		assertEquals(breaker.getState(), State.OPEN);
+	}
+}
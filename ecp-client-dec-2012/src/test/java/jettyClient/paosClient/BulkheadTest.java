@@ -0,0 +1,192 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.paosClient;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests of the permits and the queue of Bulkhead.
+ *
+ * @author carolina
+ *
+ */
+public class BulkheadTest {
+
+	/**
+	 * A task that counts how many times it has run.
+	 */
+	private static class Task implements Runnable {
+		private int runs = 0;
+
+		public void run() {
+			runs++;
+		}
+	}
+
+	@Test
+	public void runsAtOnceWithAFreePermit() {
+		Bulkhead bulkhead = new Bulkhead("sp:443", 1, 1);
+		Task task = new Task();
+
+		assertTrue(bulkhead.offer(task));
+		assertEquals(task.runs, 1);
+		assertEquals(bulkhead.getInFlight(), 1);
+	}
+
+	@Test
+	public void releaseHandsThePermitToTheFirstWaiter() {
+		Bulkhead bulkhead = new Bulkhead("sp:443", 1, 2);
+		Task first = new Task();
+		Task second = new Task();
+		Task third = new Task();
+
+		bulkhead.offer(first);
+		bulkhead.offer(second);
+		bulkhead.offer(third);
+		assertEquals(second.runs, 0);
+		assertEquals(bulkhead.getQueued(), 2);
+
+		bulkhead.release();
+		assertEquals(second.runs, 1);
+		assertEquals(third.runs, 0);
+		assertEquals(bulkhead.getInFlight(), 1);
+		assertEquals(bulkhead.getQueued(), 1);
+
+		bulkhead.release();
+		assertEquals(third.runs, 1);
+
+		bulkhead.release();
+		assertEquals(bulkhead.getInFlight(), 0);
+	}
+
+	@Test
+	public void rejectsWhenTheQueueIsFull() {
+		Bulkhead bulkhead = new Bulkhead("sp:443", 1, 1);
+		bulkhead.offer(new Task());
+		bulkhead.offer(new Task());
+		Task rejected = new Task();
+
+		assertFalse(bulkhead.offer(rejected));
+		assertFalse(bulkhead.acquire(1000));
+		assertEquals(rejected.runs, 0);
+		assertEquals(bulkhead.getRejected(), 2L);
+	}
+
+	@Test
+	public void acquireTimesOut() {
+		Bulkhead bulkhead = new Bulkhead("sp:443", 1, 1);
+		assertTrue(bulkhead.acquire(0));
+
+		assertFalse(bulkhead.acquire(10));
+		assertEquals(bulkhead.getQueued(), 0);
+		assertEquals(bulkhead.getRejected(), 1L);
+	}
+
+	@Test
+	public void acquireGetsAReleasedPermit() throws InterruptedException {
+		final Bulkhead bulkhead = new Bulkhead("sp:443", 1, 1);
+		assertTrue(bulkhead.acquire(0));
+
+		Thread releaser = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					return;
+				}
+				bulkhead.release();
+			}
+		};
+		releaser.start();
+
+		assertTrue(bulkhead.acquire(5000));
+		assertEquals(bulkhead.getInFlight(), 1);
+		releaser.join();
+	}
+
+	@Test
+	public void shrinkingDrainsBeforeHandingOver() {
+		Bulkhead bulkhead = new Bulkhead("sp:443", 3, 5);
+		bulkhead.offer(new Task());
+		bulkhead.offer(new Task());
+		bulkhead.offer(new Task());
+		Task waiting = new Task();
+		bulkhead.offer(waiting);
+
+		bulkhead.setLimits(1, 5);
+
+		// Two of three running requests are over the new limit, their
+		// permits are not handed over.
+		bulkhead.release();
+		assertEquals(waiting.runs, 0);
+		assertEquals(bulkhead.getInFlight(), 2);
+		bulkhead.release();
+		assertEquals(waiting.runs, 0);
+		assertEquals(bulkhead.getInFlight(), 1);
+
+		bulkhead.release();
+		assertEquals(waiting.runs, 1);
+		assertEquals(bulkhead.getInFlight(), 1);
+	}
+
+	@Test
+	public void growingLetsNewRequestsThrough() {
+		Bulkhead bulkhead = new Bulkhead("sp:443", 1, 1);
+		bulkhead.offer(new Task());
+
+		bulkhead.setLimits(2, 1);
+		Task task = new Task();
+
+		assertTrue(bulkhead.offer(task));
+		assertEquals(task.runs, 1);
+		assertEquals(bulkhead.getInFlight(), 2);
+	}
+
+	@Test
+	public void removeTakesAQueuedTaskOut() {
+		Bulkhead bulkhead = new Bulkhead("sp:443", 1, 1);
+		bulkhead.offer(new Task());
+		Task queued = new Task();
+		bulkhead.offer(queued);
+
+		assertTrue(bulkhead.remove(queued));
+		assertEquals(bulkhead.getQueued(), 0);
+		assertEquals(bulkhead.getRejected(), 1L);
+
+		// The permit is not handed to the removed task.
+		bulkhead.release();
+		assertEquals(queued.runs, 0);
+		assertEquals(bulkhead.getInFlight(), 0);
+	}
+
+	@Test
+	public void removeAfterTheHandOverFails() {
+		Bulkhead bulkhead = new Bulkhead("sp:443", 1, 1);
+		bulkhead.offer(new Task());
+		Task queued = new Task();
+		bulkhead.offer(queued);
+		bulkhead.release();
+
+		assertEquals(queued.runs, 1);
+		assertFalse(bulkhead.remove(queued));
+		assertEquals(bulkhead.getRejected(), 0L);
+	}
+}
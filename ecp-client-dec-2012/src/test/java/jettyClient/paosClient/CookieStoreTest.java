@@ -0,0 +1,346 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.paosClient;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests of the RFC 6265 parsing, matching and eviction of CookieStore.
+ *
+ * @author carolina
+ *
+ */
+public class CookieStoreTest {
+
+	private static final String HOST = "sp.example.org";
+	private static final String FUTURE = "Wed, 09 Jun 2100 10:18:14 GMT";
+	private static final String PAST = "Mon, 01 Jan 1990 00:00:00 GMT";
+
+	private CookieStore newStore() {
+		return new CookieStore(50, 3000);
+	}
+
+	@Test
+	public void maxAgeZeroWinsOverLaterExpires() {
+		CookieStore store = newStore();
+		store.store(HOST, "/", "a=1; Max-Age=0; Expires=" + FUTURE);
+
+		assertNull(store.getCookieHeader(HOST, "/", true));
+		assertEquals(store.size(), 0);
+	}
+
+	@Test
+	public void maxAgeZeroWinsOverEarlierExpires() {
+		CookieStore store = newStore();
+		store.store(HOST, "/", "a=1; Expires=" + FUTURE + "; Max-Age=0");
+
+		assertNull(store.getCookieHeader(HOST, "/", true));
+	}
+
+	@Test
+	public void maxAgeWinsOverExpiresInThePast() {
+		CookieStore store = newStore();
+		long before = System.currentTimeMillis();
+		store.store(HOST, "/", "a=1; Expires=" + PAST + "; Max-Age=3600");
+
+		assertEquals(store.getCookieHeader(HOST, "/", true), "a=1");
+
+		long expiry = store.getEarliestExpiry(HOST);
+		assertTrue(expiry >= before + 3600 * 1000L);
+		assertTrue(expiry <= System.currentTimeMillis() + 3600 * 1000L);
+	}
+
+	@Test
+	public void expiresWithoutMaxAge() {
+		CookieStore store = newStore();
+		store.store(HOST, "/", "gone=1; Expires=" + PAST);
+		store.store(HOST, "/", "kept=1; Expires=" + FUTURE);
+
+		assertEquals(store.getCookieHeader(HOST, "/", true), "kept=1");
+		assertEquals(store.getEarliestExpiry(HOST), 4116219494000L);
+	}
+
+	@Test
+	public void sessionCookieNeverExpires() {
+		CookieStore store = newStore();
+		store.store(HOST, "/", "a=1");
+
+		assertEquals(store.getEarliestExpiry(HOST), Long.MAX_VALUE);
+		assertEquals(store.getEarliestExpiry("other.org"), -1L);
+	}
+
+	@Test
+	public void rejectsDomainTheHostIsNotIn() {
+		CookieStore store = newStore();
+		store.store(HOST, "/", "a=1; Domain=other.org");
+		store.store(HOST, "/", "b=1; Domain=ample.org");
+
+		assertEquals(store.size(), 0);
+		assertNull(store.getCookieHeader("other.org", "/", true));
+	}
+
+	@Test
+	public void rejectsTopLevelDomain() {
+		CookieStore store = newStore();
+		store.store(HOST, "/", "a=1; Domain=org");
+		store.store(HOST, "/", "b=1; Domain=.org");
+
+		assertEquals(store.size(), 0);
+	}
+
+	@Test
+	public void rejectsPublicSuffixDomain() {
+		CookieStore store = newStore();
+		store.store("sp.example.ac.uk", "/", "a=1; Domain=ac.uk");
+		store.store("sp.example.co.uk", "/", "b=1; Domain=.co.uk");
+		store.store("sp.example.ac.uk", "/", "c=1; Domain=example.ac.uk");
+
+		assertEquals(store.size(), 1);
+		assertNull(store.getCookieHeader("other.ac.uk", "/", true));
+		assertEquals(store.getCookieHeader("idp.example.ac.uk", "/", true),
+				"c=1");
+	}
+
+	@Test
+	public void publicSuffixHostGetsHostOnlyCookie() {
+		CookieStore store = newStore();
+		store.store("ac.uk", "/", "a=1; Domain=ac.uk");
+
+		assertEquals(store.getCookieHeader("ac.uk", "/", true), "a=1");
+		assertNull(store.getCookieHeader("example.ac.uk", "/", true));
+	}
+
+	@Test
+	public void parentDomainIsSentToSiblings() {
+		CookieStore store = newStore();
+		store.store(HOST, "/", "a=1; Domain=.Example.org");
+
+		assertEquals(store.getCookieHeader("idp.example.org", "/", true),
+				"a=1");
+		assertEquals(store.getCookieHeader("example.org", "/", true), "a=1");
+		assertNull(store.getCookieHeader("example.com", "/", true));
+	}
+
+	@Test
+	public void rejectsDomainForIpAddress() {
+		CookieStore store = newStore();
+		store.store("10.0.0.1", "/", "a=1; Domain=0.0.1");
+		store.store("10.0.0.1", "/", "b=1; Domain=0.1");
+
+		assertEquals(store.size(), 0);
+		assertNull(store.getCookieHeader("10.0.0.1", "/", true));
+		assertNull(store.getCookieHeader("20.0.0.1", "/", true));
+	}
+
+	@Test
+	public void ipAddressMatchesItself() {
+		CookieStore store = newStore();
+		store.store("10.0.0.1", "/", "a=1");
+		store.store("10.0.0.1", "/", "b=1; Domain=10.0.0.1");
+
+		assertEquals(store.getCookieHeader("10.0.0.1", "/", true), "a=1; b=1");
+		assertNull(store.getCookieHeader("20.0.0.1", "/", true));
+	}
+
+	@Test
+	public void pathMatchStopsAtSegmentBoundary() {
+		CookieStore store = newStore();
+		store.store(HOST, "/", "a=1; Path=/foo");
+
+		assertEquals(store.getCookieHeader(HOST, "/foo", true), "a=1");
+		assertEquals(store.getCookieHeader(HOST, "/foo/bar", true), "a=1");
+		assertEquals(store.getCookieHeader(HOST, "/foo?x=1", true), "a=1");
+		assertNull(store.getCookieHeader(HOST, "/foobar", true));
+		assertNull(store.getCookieHeader(HOST, "/", true));
+	}
+
+	@Test
+	public void pathWithTrailingSlash() {
+		CookieStore store = newStore();
+		store.store(HOST, "/", "a=1; Path=/foo/");
+
+		assertEquals(store.getCookieHeader(HOST, "/foo/bar", true), "a=1");
+		assertNull(store.getCookieHeader(HOST, "/foo", true));
+	}
+
+	@Test
+	public void defaultPathIsTheRequestDirectory() {
+		CookieStore store = newStore();
+		store.store(HOST, "/app/login?target=x", "a=1");
+
+		assertEquals(store.getCookieHeader(HOST, "/app/resource", true), "a=1");
+		assertNull(store.getCookieHeader(HOST, "/application", true));
+		assertNull(store.getCookieHeader(HOST, "/", true));
+	}
+
+	@Test
+	public void longerPathsAreSentFirst() throws InterruptedException {
+		CookieStore store = newStore();
+		store.store(HOST, "/", "root=1; Path=/");
+		Thread.sleep(2);
+		store.store(HOST, "/", "app=1; Path=/app");
+
+		assertEquals(store.getCookieHeader(HOST, "/app/x", true),
+				"app=1; root=1");
+	}
+
+	@Test
+	public void hostOnlyCookieIsNotSentToSubdomains() {
+		CookieStore store = newStore();
+		store.store(HOST, "/", "a=1");
+
+		assertEquals(store.getCookieHeader(HOST, "/", true), "a=1");
+		assertEquals(store.getCookieHeader("SP.Example.org", "/", true), "a=1");
+		assertNull(store.getCookieHeader("www.sp.example.org", "/", true));
+		assertNull(store.getCookieHeader("example.org", "/", true));
+	}
+
+	@Test
+	public void domainCookieIsSentToSubdomains() {
+		CookieStore store = newStore();
+		store.store(HOST, "/", "a=1; Domain=sp.example.org");
+
+		assertEquals(store.getCookieHeader("www.sp.example.org", "/", true),
+				"a=1");
+	}
+
+	@Test
+	public void secureCookieOnlyOverHttps() {
+		CookieStore store = newStore();
+		store.store(HOST, "/", "a=1; Secure");
+
+		assertNull(store.getCookieHeader(HOST, "/", false));
+		assertEquals(store.getCookieHeader(HOST, "/", true), "a=1");
+	}
+
+	@Test
+	public void sameNameAndPathReplaces() {
+		CookieStore store = newStore();
+		store.store(HOST, "/", "a=1");
+		store.store(HOST, "/", "a=2");
+
+		assertEquals(store.size(), 1);
+		assertEquals(store.getCookieHeader(HOST, "/", true), "a=2");
+	}
+
+	@Test
+	public void ignoresInvalidCookies() {
+		CookieStore store = newStore();
+		store.store(HOST, "/", "novalue");
+		store.store(HOST, "/", "=1");
+
+		assertEquals(store.size(), 0);
+	}
+
+	@Test
+	public void copyIsIndependent() {
+		CookieStore store = newStore();
+		store.store(HOST, "/", "a=1");
+
+		CookieStore copy = store.copy();
+		copy.store(HOST, "/", "b=2");
+		store.store(HOST, "/", "a=3");
+
+		assertEquals(store.getCookieHeader(HOST, "/", true), "a=3");
+		assertEquals(copy.getCookieHeader(HOST, "/", true), "a=1; b=2");
+	}
+
+	@Test
+	public void copyForHostLeavesOutOtherDomains() {
+		CookieStore store = newStore();
+		store.store("idp.example.org", "/", "idp=1");
+		store.store("idp.example.org", "/", "shared=1; Domain=example.org");
+		store.store("sp.example.com", "/", "sp=1");
+		store.store("www.idp.example.org", "/", "sub=1");
+
+		CookieStore copy = store.copy("IdP.example.org");
+
+		assertEquals(copy.size(), 2);
+		assertEquals(copy.getCookieHeader("idp.example.org", "/", true),
+				"idp=1; shared=1");
+		assertNull(copy.getCookieHeader("sp.example.com", "/", true));
+		assertEquals(copy.getCookieHeader("www.idp.example.org", "/", true),
+				"shared=1");
+		assertEquals(store.size(), 4);
+	}
+
+	@Test
+	public void addAllReplacesAndLeavesOtherUnchanged() {
+		CookieStore store = newStore();
+		store.store(HOST, "/", "a=1");
+		store.store(HOST, "/", "b=1; Path=/app");
+
+		CookieStore other = newStore();
+		other.store(HOST, "/", "a=2");
+		other.store("idp.example.org", "/", "idp=1");
+
+		store.addAll(other);
+
+		assertEquals(store.size(), 3);
+		assertEquals(store.getCookieHeader(HOST, "/app/x", true), "b=1; a=2");
+		assertEquals(store.getCookieHeader("idp.example.org", "/", true),
+				"idp=1");
+		assertEquals(other.size(), 2);
+	}
+
+	@Test
+	public void evictsOldestAtMaxCookiesPerDomain() throws InterruptedException {
+		CookieStore store = new CookieStore(2, 100);
+		store.store(HOST, "/", "a=1");
+		Thread.sleep(2);
+		store.store(HOST, "/", "b=2");
+		Thread.sleep(2);
+		store.store(HOST, "/", "c=3");
+
+		assertEquals(store.size(), 2);
+		assertEquals(store.getCookieHeader(HOST, "/", true), "b=2; c=3");
+	}
+
+	@Test
+	public void evictsExpiredBeforeOldest() throws InterruptedException {
+		CookieStore store = new CookieStore(2, 100);
+		store.store(HOST, "/", "a=1");
+		Thread.sleep(2);
+		store.store(HOST, "/", "b=2; Max-Age=1");
+		Thread.sleep(1100);
+		store.store(HOST, "/", "c=3");
+
+		assertEquals(store.size(), 2);
+		assertEquals(store.getCookieHeader(HOST, "/", true), "a=1; c=3");
+	}
+
+	@Test
+	public void evictsOldestAtMaxCookies() throws InterruptedException {
+		CookieStore store = new CookieStore(50, 3);
+		store.store("a.example.org", "/", "a=1");
+		Thread.sleep(2);
+		store.store("b.example.org", "/", "b=2");
+		Thread.sleep(2);
+		store.store("c.example.org", "/", "c=3");
+		Thread.sleep(2);
+		store.store("d.example.org", "/", "d=4");
+
+		assertEquals(store.size(), 3);
+		assertNull(store.getCookieHeader("a.example.org", "/", true));
+		assertEquals(store.getCookieHeader("b.example.org", "/", true), "b=2");
+		assertEquals(store.getCookieHeader("d.example.org", "/", true), "d=4");
+	}
+}
@@ -0,0 +1,146 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.paosClient;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import jettyClient.paosClient.RetryPolicy.Cause;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests of the limits, the jitter and the budget of RetryPolicy.
+ *
+ * @author carolina
+ *
+ */
+public class RetryPolicyTest {
+
+	private static final int BUDGET = 1000;
+	private static final long WINDOW = 60000;
+
+	@Test
+	public void stopsAfterMaxRetries() {
+		RetryPolicy policy = new RetryPolicy(2, 10, 100, BUDGET, WINDOW);
+
+		assertTrue(policy.retryDelay(Cause.EXPIRED, 0, true, 0) >= 0);
+		assertTrue(policy.retryDelay(Cause.EXPIRED, 1, true, 0) >= 0);
+		assertEquals(policy.retryDelay(Cause.EXPIRED, 2, true, 0), -1L);
+		assertEquals(policy.getRetries(), 2L);
+	}
+
+	@Test
+	public void neverRetriesRejected() {
+		RetryPolicy policy = new RetryPolicy(3, 10, 100, BUDGET, WINDOW);
+
+		assertEquals(policy.retryDelay(Cause.REJECTED, 0, true, 0), -1L);
+		assertEquals(policy.retryDelay(Cause.REJECTED, 0, false, 0), -1L);
+		assertEquals(policy.getRetries(), 0L);
+		assertEquals(policy.getDenied(), 0L);
+	}
+
+	@Test
+	public void notReplayableOnlyIfNotSent() {
+		RetryPolicy policy = new RetryPolicy(3, 10, 100, BUDGET, WINDOW);
+
+		assertEquals(policy.retryDelay(Cause.EXPIRED, 0, false, 0), -1L);
+		assertEquals(policy.retryDelay(Cause.EXCEPTED, 0, false, 0), -1L);
+		assertEquals(policy.retryDelay(Cause.SERVER_UNAVAILABLE, 0, false, 0),
+				-1L);
+		assertTrue(policy.retryDelay(Cause.CONNECTION_FAILED, 0, false, 0) >= 0);
+	}
+
+	@Test
+	public void fullJitterBounds() {
+		RetryPolicy policy = new RetryPolicy(20, 100, 1000, Integer.MAX_VALUE,
+				WINDOW);
+
+		for (int i = 0; i < 500; i++) {
+			long first = policy.retryDelay(Cause.EXPIRED, 0, true, 0);
+			assertTrue(first >= 0 && first < 100, "first retry: " + first);
+
+			long third = policy.retryDelay(Cause.EXPIRED, 2, true, 0);
+			assertTrue(third >= 0 && third < 400, "third retry: " + third);
+
+			long capped = policy.retryDelay(Cause.EXPIRED, 10, true, 0);
+			assertTrue(capped >= 0 && capped < 1000, "capped retry: " + capped);
+		}
+	}
+
+	@Test
+	public void jitterIsSpread() {
+		RetryPolicy policy = new RetryPolicy(1, 1000, 1000, Integer.MAX_VALUE,
+				WINDOW);
+
+		long min = Long.MAX_VALUE;
+		long max = -1;
+		for (int i = 0; i < 500; i++) {
+			long delay = policy.retryDelay(Cause.EXPIRED, 0, true, 0);
+			min = Math.min(min, delay);
+			max = Math.max(max, delay);
+		}
+		assertTrue(min < 250, "min: " + min);
+		assertTrue(max >= 750, "max: " + max);
+	}
+
+	@Test
+	public void budgetLimitsRetries() {
+		RetryPolicy policy = new RetryPolicy(5, 10, 100, 2, WINDOW);
+
+		assertTrue(policy.retryDelay(Cause.EXPIRED, 0, true, 0) >= 0);
+		assertTrue(policy.retryDelay(Cause.EXPIRED, 0, true, 0) >= 0);
+		assertEquals(policy.retryDelay(Cause.EXPIRED, 0, true, 0), -1L);
+
+		assertEquals(policy.getRetries(), 2L);
+		assertEquals(policy.getDenied(), 1L);
+	}
+
+	@Test
+	public void budgetIsRefilledAfterWindow() throws InterruptedException {
+		RetryPolicy policy = new RetryPolicy(5, 10, 100, 1, 20);
+
+		assertTrue(policy.retryDelay(Cause.EXPIRED, 0, true, 0) >= 0);
+		assertEquals(policy.retryDelay(Cause.EXPIRED, 0, true, 0), -1L);
+
+		Thread.sleep(40);
+		assertTrue(policy.retryDelay(Cause.EXPIRED, 0, true, 0) >= 0);
+	}
+
+	@Test
+	public void noRetryPastTheDeadline() {
+		RetryPolicy policy = new RetryPolicy(5, 10, 100, BUDGET, WINDOW);
+
+		long past = System.currentTimeMillis() - 1;
+		assertEquals(policy.retryDelay(Cause.EXPIRED, 0, true, past), -1L);
+
+		// Refused by the deadline, not by the budget.
+		assertEquals(policy.getDenied(), 0L);
+	}
+
+	@Test
+	public void countsFailuresPerCause() {
+		RetryPolicy policy = new RetryPolicy(5, 10, 100, BUDGET, WINDOW);
+		policy.failed(Cause.EXPIRED);
+		policy.failed(Cause.EXPIRED);
+		policy.failed(Cause.REJECTED);
+
+		assertEquals(policy.getFailures(Cause.EXPIRED), 2L);
+		assertEquals(policy.getFailures(Cause.REJECTED), 1L);
+		assertEquals(policy.getFailures(Cause.CONNECTION_FAILED), 0L);
+	}
+}
@@ -0,0 +1,81 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.simpleClient;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests of the expiry and eviction of ExpiringCache.
+ *
+ * @author carolina
+ *
+ */
+public class ExpiringCacheTest {
+
+	private static final long LATER = Long.MAX_VALUE;
+
+	@Test
+	public void putReplaces() {
+		ExpiringCache<String> cache = new ExpiringCache<String>(2);
+		cache.put("a", "1", LATER);
+		cache.put("a", "2", LATER);
+
+		assertEquals(cache.size(), 1);
+		assertEquals(cache.get("a"), "2");
+	}
+
+	@Test
+	public void expiredEntryIsRemovedWhenAskedFor() {
+		ExpiringCache<String> cache = new ExpiringCache<String>(2);
+		cache.put("a", "1", System.currentTimeMillis() - 1);
+
+		assertEquals(cache.size(), 1);
+		assertNull(cache.get("a"));
+		assertEquals(cache.size(), 0);
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		ExpiringCache<String> cache = new ExpiringCache<String>(2);
+		cache.put("a", "1", LATER);
+		cache.put("b", "2", LATER);
+		cache.get("a");
+		cache.put("c", "3", LATER);
+
+		assertEquals(cache.size(), 2);
+		assertNull(cache.get("b"));
+		assertEquals(cache.get("a"), "1");
+		assertEquals(cache.get("c"), "3");
+	}
+
+	@Test
+	public void removeAndClear() {
+		ExpiringCache<String> cache = new ExpiringCache<String>(2);
+		cache.put("a", "1", LATER);
+		cache.put("b", "2", LATER);
+
+		cache.remove("a");
+		assertNull(cache.get("a"));
+		assertEquals(cache.size(), 1);
+
+		cache.clear();
+		assertEquals(cache.size(), 0);
+	}
+}
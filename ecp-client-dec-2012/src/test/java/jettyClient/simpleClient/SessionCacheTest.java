@@ -0,0 +1,186 @@
+/* ***************************************************************************
+ * Copyright 2012 Carolina Lindqvist
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ * ***************************************************************************/
+
+package jettyClient.simpleClient;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import jettyClient.paosClient.CookieStore;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests of the keys and the copying of SessionCache.
+ *
+ * @author carolina
+ *
+ */
+public class SessionCacheTest {
+
+	private static final String HOST = "sp.example.org";
+
+	private static URL url(String url) {
+		try {
+			return new URL(url);
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private static CookieStore session(String cookie) {
+		CookieStore store = new CookieStore(50, 3000);
+		store.store(HOST, "/", cookie);
+		return store;
+	}
+
+	@Test
+	public void containsOnlyTheCachedSession() {
+		SessionCache cache = new SessionCache(10, 60000);
+		cache.put("alice", "secret", url("https://sp.example.org/a"),
+				session("s=1"));
+
+		assertTrue(cache.contains("alice", "secret",
+				url("https://sp.example.org/b")));
+		assertFalse(cache.contains("alice", "other",
+				url("https://sp.example.org/a")));
+		assertFalse(cache.contains("bob", "secret",
+				url("https://sp.example.org/a")));
+	}
+
+	@Test
+	public void restoreNeedsTheSameCredentials() {
+		SessionCache cache = new SessionCache(10, 60000);
+		cache.put("alice", "secret", url("https://sp.example.org/a"),
+				session("s=1"));
+
+		CookieStore wrong = new CookieStore(50, 3000);
+		assertFalse(cache.restore("alice", "guess", url("https://sp.example.org/"),
+				wrong));
+		assertFalse(cache.restore("alice", null, url("https://sp.example.org/"),
+				wrong));
+		assertEquals(wrong.size(), 0);
+
+		CookieStore right = new CookieStore(50, 3000);
+		assertTrue(cache.restore("alice", "secret",
+				url("https://sp.example.org/b"), right));
+		assertEquals(right.getCookieHeader(HOST, "/", true), "s=1");
+	}
+
+	@Test
+	public void keyedByOrigin() {
+		SessionCache cache = new SessionCache(10, 60000);
+		cache.put("alice", "secret", url("https://sp.example.org/"),
+				session("s=1"));
+
+		CookieStore store = new CookieStore(50, 3000);
+		assertFalse(cache.restore("alice", "secret",
+				url("https://sp.example.org:8443/"), store));
+		assertFalse(cache.restore("alice", "secret",
+				url("http://sp.example.org/"), store));
+	}
+
+	@Test
+	public void cacheKeepsItsOwnCopy() {
+		SessionCache cache = new SessionCache(10, 60000);
+		CookieStore login = session("s=1");
+		cache.put("alice", "secret", url("https://sp.example.org/"), login);
+
+		// The login goes on changing its own store.
+		login.store(HOST, "/", "s=2");
+
+		CookieStore first = new CookieStore(50, 3000);
+		cache.restore("alice", "secret", url("https://sp.example.org/"), first);
+		assertEquals(first.getCookieHeader(HOST, "/", true), "s=1");
+
+		// Nor does a restored store write back into the cache.
+		first.store(HOST, "/", "other=1");
+
+		CookieStore second = new CookieStore(50, 3000);
+		cache.restore("alice", "secret", url("https://sp.example.org/"), second);
+		assertEquals(second.getCookieHeader(HOST, "/", true), "s=1");
+	}
+
+	@Test
+	public void onlyProviderCookiesAreCached() {
+		SessionCache cache = new SessionCache(10, 60000);
+		CookieStore login = session("s=1");
+		login.store("idp.example.com", "/", "idp=1");
+		cache.put("alice", "secret", url("https://idp.example.com/"), login);
+
+		CookieStore store = new CookieStore(50, 3000);
+		assertTrue(cache.restore("alice", "secret",
+				url("https://idp.example.com/"), store));
+		assertEquals(store.size(), 1);
+		assertEquals(store.getCookieHeader("idp.example.com", "/", true),
+				"idp=1");
+		assertNull(store.getCookieHeader(HOST, "/", true));
+	}
+
+	@Test
+	public void nothingCachedWithoutProviderCookies() {
+		SessionCache cache = new SessionCache(10, 60000);
+		cache.put("alice", "secret", url("https://other.example.com/"),
+				session("s=1"));
+
+		assertEquals(cache.size(), 0);
+	}
+
+	@Test
+	public void invalidateRemoves() {
+		SessionCache cache = new SessionCache(10, 60000);
+		cache.put("alice", "secret", url("https://sp.example.org/"),
+				session("s=1"));
+		cache.invalidate("alice", "secret", url("https://sp.example.org/"));
+
+		assertEquals(cache.size(), 0);
+	}
+
+	@Test
+	public void expiredSessionIsNotRestored() throws InterruptedException {
+		SessionCache cache = new SessionCache(10, 1);
+		cache.put("alice", "secret", url("https://sp.example.org/"),
+				session("s=1"));
+		Thread.sleep(5);
+
+		CookieStore store = new CookieStore(50, 3000);
+		assertFalse(cache.restore("alice", "secret",
+				url("https://sp.example.org/"), store));
+		assertNull(store.getCookieHeader(HOST, "/", true));
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		SessionCache cache = new SessionCache(2, 60000);
+		cache.put("a", "p", url("https://sp.example.org/"), session("s=1"));
+		cache.put("b", "p", url("https://sp.example.org/"), session("s=2"));
+
+		CookieStore store = new CookieStore(50, 3000);
+		cache.restore("a", "p", url("https://sp.example.org/"), store);
+		cache.put("c", "p", url("https://sp.example.org/"), session("s=3"));
+
+		assertEquals(cache.size(), 2);
+		assertFalse(cache.restore("b", "p", url("https://sp.example.org/"),
+				new CookieStore(50, 3000)));
+		assertTrue(cache.restore("a", "p", url("https://sp.example.org/"),
+				new CookieStore(50, 3000)));
+	}
+}